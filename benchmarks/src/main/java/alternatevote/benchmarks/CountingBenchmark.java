@@ -0,0 +1,140 @@
+package alternatevote.benchmarks;
+
+import alternatevote.AVModel;
+import alternatevote.PileCounter;
+import alternatevote.VotesTableModel;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of loading, counting, redistributing and displaying votes. Run them with "-prof gc" to report the
+ * allocation rate next to the throughput (the ant benchmark target does this).
+ * @author ryansmith
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class CountingBenchmark {
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int VISIBLE_ROWS = 40;
+    
+    /**
+     * Loads the ballot file into a new model (AVModel.loadVotes).
+     */
+    @Benchmark
+    public AVModel loadVotes(ElectionState election) throws Exception {
+        return election.createModel();
+    }
+    
+    /**
+     * Counts the first preferences of every ballot (AVModel.countVotes).
+     */
+    @Benchmark
+    public int countVotes(ElectionState election) {
+        PileCounter counter = new PileCounter();
+        counter.count(new boolean[election.candidateCount], election.model.getBallots());
+        return counter.getCount(0);
+    }
+    
+    /**
+     * Counts every round from scratch (AVModel.runToCompletion).
+     */
+    @Benchmark
+    public int runToCompletion(ElectionState election) throws IOException {
+        return election.model.runToCompletion().getRoundCount();
+    }
+    
+    /**
+     * Redistributes the votes of the lowest candidate after the first round (AVModel.redistribute).
+     */
+    @Benchmark
+    public int redistribute(CountedState counted) {
+        counted.counter.redistribute(counted.lowestId);
+        return counted.counter.getCount(0);
+    }
+    
+    /**
+     * Finds the current choice of a sample of votes part way through a count (Vote.getChoice).
+     */
+    @Benchmark
+    public void getChoice(ChoiceState choices, Blackhole blackhole) {
+        for (int index : choices.sample) {
+            blackhole.consume(choices.model.getVote(index).getChoice());
+        }
+    }
+    
+    /**
+     * Snapshots the ballots, refreshes the votes table and renders a screen of rows (AVVotesView.ballotsReplaced).
+     */
+    @Benchmark
+    public void updateVotesTable(ChoiceState choices, Blackhole blackhole) {
+        choices.table.refresh(choices.model.snapshotBallots());
+        int firstRow = choices.sample[0] % Math.max(1, choices.table.getRowCount() - VISIBLE_ROWS);
+        int lastRow = Math.min(choices.table.getRowCount(), firstRow + VISIBLE_ROWS);
+        for (int row = firstRow; row < lastRow; row++) {
+            for (int column = 0; column < choices.table.getColumnCount(); column++) {
+                blackhole.consume(choices.table.getValueAt(row, column));
+            }
+        }
+    }
+    
+    /**
+     * A first round count that is redone before each redistribution so that there is always a pile to move.
+     */
+    @State(Scope.Thread)
+    public static class CountedState {
+        public PileCounter counter;
+        public int lowestId;
+        
+        @Setup(Level.Invocation)
+        public void setUp(ElectionState election) {
+            counter = new PileCounter();
+            counter.count(new boolean[election.candidateCount], election.model.getBallots());
+            lowestId = 0;
+            for (int id = 1; id < election.candidateCount; id++) {
+                if (counter.getCount(id) < counter.getCount(lowestId)) {
+                    lowestId = id;
+                }
+            }
+        }
+    }
+    
+    /**
+     * A model part way through a count with a sample of vote indexes.
+     */
+    @State(Scope.Thread)
+    public static class ChoiceState {
+        public AVModel model;
+        public VotesTableModel table;
+        public int[] sample = new int[SAMPLE_SIZE];
+        
+        @Setup
+        public void setUp(ElectionState election) throws Exception {
+            model = election.createModel();
+            model.startCounting();
+            if (model.hasStarted()) {
+                model.redistribute();
+            }
+            table = new VotesTableModel(model);
+            Random random = new Random(42);
+            for (int index = 0; index < SAMPLE_SIZE; index++) {
+                sample[index] = random.nextInt(model.getBallots().size());
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package alternatevote.benchmarks;
+
+import alternatevote.AVModel;
+import alternatevote.BallotGenerator;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A generated election shared by the benchmarks of one set of parameters. The ballot file is written and loaded
+ * once per trial.
+ * @author ryansmith
+ */
+@State(Scope.Benchmark)
+public class ElectionState {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int ballotCount;
+    
+    @Param({"4", "12"})
+    public int candidateCount;
+    
+    @Param({"UNIFORM", "FULL", "SHORT"})
+    public BallotGenerator.LengthDistribution lengths;
+    
+    @Param({"0.0", "0.9"})
+    public double duplicateRatio;
+    
+    public Path file;
+    public ArrayList<String> candidateNames;
+    public AVModel model;
+    
+    @Setup
+    public void setUp() throws Exception {
+        file = Files.createTempFile("ballots", ".csv");
+        BallotGenerator generator = new BallotGenerator(candidateCount, 42);
+        generator.setLengthDistribution(lengths);
+        generator.setDuplicateRatio(duplicateRatio);
+        generator.write(file.toString(), ballotCount);
+        candidateNames = new ArrayList<>();
+        for (int id = 0; id < candidateCount; id++) {
+            candidateNames.add("Candidate " + id);
+        }
+        model = createModel();
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+    
+    /**
+     * Creates a model and loads the election's ballots into it.
+     * @return The model.
+     * @throws Exception If the ballots cannot be loaded.
+     */
+    public AVModel createModel() throws Exception {
+        AVModel newModel = new AVModel(candidateNames);
+        newModel.loadVotes(file.toString());
+        return newModel;
+    }
+}
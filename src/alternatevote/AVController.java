@@ -1,62 +1,145 @@
 package alternatevote;
 
 import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.swing.JFileChooser;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
  * A controller for the interactions of a votes view and counting view with a model.
+ * Loading and counting run on a background thread so that the views stay responsive.
  * @author ryansmith
  */
 public class AVController {
+    private static final String BALLOT_FILE_EXTENSION = "avb";
     private final AVModel model;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "Vote counting");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final VoteSubmitter submitter;
+    private BallotStream stream = null;
     private AVVotesView votesView;
     private AVCountingView countingView;
     
     public AVController(AVModel model) {
         this.model = model;
+        submitter = new VoteSubmitter(model, executor, Runtime.getRuntime().availableProcessors(), VoteSubmitter.DEFAULT_BUFFER_SIZE);
+        submitter.setErrorListener((message) -> SwingUtilities.invokeLater(() -> votesView.showError(message)));
     }
     
     /**
      * Starts counting votes.
      */
     public void startCounting() {
-        model.startCounting();
-        checkStart();
+        runInBackground(() -> model.startCounting());
     }
     
     /**
      * Redistributes votes.
      */
     public void redistribute() {
-        model.redistribute();
-        checkStart();
+        runInBackground(() -> model.redistribute());
     }
     
     /**
-     * Loads votes into the ballot from a CSV file.
+     * Counts every remaining round.
+     */
+    public void runToCompletion() {
+        runInBackground(() -> model.runToCompletion());
+    }
+    
+    /**
+     * Cancels the load or count that is running in the background.
+     */
+    public void cancel() {
+        model.cancel();
+    }
+    
+    /**
+     * Loads votes into the ballot from a CSV file or a binary ballot file.
      */
     public void loadVotes() {
-        // Displays a file chooser filtered by CSV files.
+        // Displays a file chooser filtered by CSV and binary ballot files.
         JFileChooser chooser = new JFileChooser();
         FileNameExtensionFilter filter = new FileNameExtensionFilter(
-            "CSV files", "csv"
+            "CSV and ballot files", "csv", BALLOT_FILE_EXTENSION
         );
         chooser.setFileFilter(filter);
         int returnVal = chooser.showOpenDialog(null);
         
-        // Attempts to load votes if a file was selected in the chooser.
+        // Attempts to load votes in the background if a file was selected in the chooser.
+        if (returnVal == JFileChooser.APPROVE_OPTION) {
+            String path = chooser.getSelectedFile().getAbsolutePath();
+            runInBackground(() -> {
+                if (path.endsWith("." + BALLOT_FILE_EXTENSION)) {
+                    model.loadBinaryVotes(path);
+                } else {
+                    model.loadVotes(path);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Streams votes from the CSV files moved into a folder, adding them in batches on the counting thread.
+     */
+    public void watchFolder() {
+        // Displays a chooser for folders.
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        int returnVal = chooser.showOpenDialog(null);
+        
+        // Attempts to watch the folder if one was selected in the chooser.
         if (returnVal == JFileChooser.APPROVE_OPTION) {
             try {
-                model.loadVotes(chooser.getSelectedFile().getAbsolutePath());
+                if (stream == null) {
+                    stream = new BallotStream(model, executor, BallotStream.DEFAULT_CAPACITY);
+                }
+                stream.watch(chooser.getSelectedFile().getAbsolutePath());
             } catch (Exception ex) {
                 votesView.showError(ex.getMessage());
             }
         }
     }
+    
+    /**
+     * Recovers the votes and count from a journal in the background, then journals every later change.
+     * @param folder The path of the journal's folder.
+     */
+    public void openJournal(String folder) {
+        runInBackground(() -> model.recover(new BallotJournal(folder, BallotJournal.DEFAULT_SNAPSHOT_INTERVAL)));
+    }
+    
+    /**
+     * Saves the votes in the ballot to a binary ballot file in the background, since batches of votes are added to
+     * the ballot on the counting thread.
+     */
+    public void saveVotes() {
+        // Displays a file chooser filtered by binary ballot files.
+        JFileChooser chooser = new JFileChooser();
+        FileNameExtensionFilter filter = new FileNameExtensionFilter(
+            "Ballot files", BALLOT_FILE_EXTENSION
+        );
+        chooser.setFileFilter(filter);
+        int returnVal = chooser.showSaveDialog(null);
+        
+        // Attempts to save votes in the background if a file was selected in the chooser.
+        if (returnVal == JFileChooser.APPROVE_OPTION) {
+            String selectedPath = chooser.getSelectedFile().getAbsolutePath();
+            String path = selectedPath.endsWith("." + BALLOT_FILE_EXTENSION)
+                ? selectedPath
+                : selectedPath + "." + BALLOT_FILE_EXTENSION;
+            runInBackground(() -> model.saveVotes(path));
+        }
+    }
 
     /**
-     * Adds votes to the ballot.
+     * Submits a vote, which is added to the ballot with the next batch on the counting thread.
      * @param candidateIds The candidate IDs of the preferences selected in the ballot view.
      */
     public void addVote(ArrayList<Integer> candidateIds) {
@@ -76,7 +159,7 @@ public class AVController {
                 }
             }
             
-            model.addVote(preferenceIds);
+            submitter.submit(preferenceIds);
         } catch (Exception ex) {
             votesView.showError(ex.getMessage());
         }
@@ -96,6 +179,46 @@ public class AVController {
      */
     public void setCountingView(AVCountingView view) {
         countingView = view;
+        model.getProgress().setListener((round, processed, total) -> view.showProgress(round, processed, total));
+    }
+    
+    /**
+     * Runs a task on the model in the background, disabling the views until it has finished.
+     * @param task The task to run.
+     */
+    private void runInBackground(ModelTask task) {
+        votesView.disableAdding();
+        votesView.disableSaving();
+        countingView.disableCounting();
+        
+        executor.execute(() -> {
+            String error = null;
+            try {
+                task.run();
+            } catch (CancellationException ex) {
+                // Cancelling leaves the model as it was before a load, or with the count reset, so there is no error
+                // to show.
+            } catch (Exception ex) {
+                error = ex.getMessage();
+            }
+            
+            // Updates the views on the event dispatch thread once the task has finished.
+            String message = error;
+            SwingUtilities.invokeLater(() -> {
+                votesView.enableSaving();
+                checkStart();
+                if (message != null) {
+                    votesView.showError(message);
+                }
+            });
+        });
+    }
+    
+    /**
+     * A task on the model that can be run in the background.
+     */
+    private interface ModelTask {
+        void run() throws Exception;
     }
     
     /**
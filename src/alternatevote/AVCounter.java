@@ -1,16 +1,23 @@
 package alternatevote;
 
+import javax.management.JMException;
+
 /**
  * A program for the alternate vote.
  * @author ryansmith
  */
 public class AVCounter {
+    private static final String JOURNAL_PROPERTY = "alternatevote.journal";
+    private static final String METRICS_PROPERTY = "alternatevote.metrics";
 
     /**
-     * Starts the program.
+     * Starts the program, counting ballot files without a user interface if any are given.
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(HeadlessCounter.run(args));
+        }
         javax.swing.SwingUtilities.invokeLater(() -> {
             createAndShowGUI();
         });
@@ -21,10 +28,29 @@ public class AVCounter {
      */
     private static void createAndShowGUI() {
         AVModel model = new AVModel();
+        
+        // Records metrics and logs them every given number of seconds if the system property is set.
+        Integer metricsPeriod = Integer.getInteger(METRICS_PROPERTY);
+        if (metricsPeriod != null && metricsPeriod > 0) {
+            CountMetrics metrics = new CountMetrics();
+            try {
+                metrics.register("gui");
+            } catch (JMException ex) {
+                System.err.println("Metrics could not be registered: " + ex.getMessage());
+            }
+            metrics.startLogging(metricsPeriod, System.err);
+            model.setMetrics(metrics);
+        }
         AVController controller = new AVController(model);
         AVVotesView ballotView = new AVVotesView(model, controller);
         AVCountingView countView = new AVCountingView(model, controller);
         AVFrame frame = new AVFrame(ballotView, countView);
+        
+        // Recovers and journals votes in the folder given by the system property, if it is set.
+        String journalFolder = System.getProperty(JOURNAL_PROPERTY);
+        if (journalFolder != null) {
+            controller.openJournal(journalFolder);
+        }
     }
     
 }
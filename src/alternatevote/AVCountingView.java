@@ -4,73 +4,126 @@ import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.SwingUtilities;
 
 /**
  * A view for listing and calculating the vote counts of candidates.
  * @author ryansmith
  */
-public class AVCountingView implements Observer {
+public class AVCountingView implements ModelListener {
     private final AVController controller;
     private final AVModel model;
 
     // Defines components to be used throughout the view.
     private final JButton startButton = new JButton("Start counting");
     private final JButton redistributeButton = new JButton("Redistribute");
-    private final JTable candidatesTable = new JTable();
+    private final JButton completeButton = new JButton("Count all rounds");
+    private final JButton cancelButton = new JButton("Cancel");
+    private final JProgressBar progressBar = new JProgressBar();
+    private final CountsTableModel countsModel = new CountsTableModel();
+    private final JTable candidatesTable = new JTable(countsModel);
     private final JPanel panel = new JPanel();
     private static final Dimension PANEL_SIZE = new Dimension(500, 500);
+    private final AtomicReference<CountsTableModel.Counts> pendingCounts = new AtomicReference<>();
     
     AVCountingView(AVModel model, AVController controller) {
         // Links MVC elements.
         this.model = model;
         this.controller = controller;
-        model.addObserver(this);
+        model.addListener(this);
         controller.setCountingView(this);
         
         // Constructs and updates the controls.
         createControls();
-        update(model, null);
+        showCounts(takeCounts());
     }
 
     /**
-     * Updates the view when the model changes.
+     * Updates the running first-preference totals as ballots are appended.
      */
     @Override
-    public void update(Observable o, Object arg) {
-        ArrayList<Candidate> candidates = new ArrayList<>(model.getCandidates());
-        String[] columnNames = {"Name", "Count"};
-        Object[][] rowData = new Object[candidates.size()][2];
-        
-        // Sorts candidates.
-        candidates.sort((candidate1, candidate2) -> {
-            if (candidate1.isEliminated()) return 1;
-            if (candidate2.isEliminated()) return -1;
-            return Integer.compare(candidate2.getCount(), candidate1.getCount());
-        });
-        
-        // Adds rows to candidates table.
-        for (int index = 0; index < candidates.size(); index++) {
-            if (!candidates.get(index).isEliminated()) {
-                rowData[index][0] = candidates.get(index).getName();
-                rowData[index][1] = candidates.get(index).getCount();
+    public void ballotsAppended(int from, int to) {
+        refreshCounts();
+    }
+
+    /**
+     * Updates the running first-preference totals after the ballot store was replaced.
+     */
+    @Override
+    public void ballotsReplaced() {
+        refreshCounts();
+    }
+
+    /**
+     * Clears the counts of the previous count.
+     */
+    @Override
+    public void countReset() {
+        refreshCounts();
+    }
+
+    /**
+     * Shows the counts and transfers of a round.
+     */
+    @Override
+    public void roundCounted(RoundHistory history, int round) {
+        refreshCounts();
+    }
+    
+    /**
+     * Takes the counts on the thread that changed the model and shows them on the event dispatch thread, coalescing
+     * the changes made before it gets there so that a stream of ballots refreshes the candidates once per frame
+     * rather than once per ballot.
+     */
+    private void refreshCounts() {
+        if (pendingCounts.getAndSet(takeCounts()) == null) {
+            SwingUtilities.invokeLater(() -> showCounts(pendingCounts.getAndSet(null)));
+        }
+    }
+
+    /**
+     * Takes a copy of the counts of the last round of the history, or the running first-preference totals whenever
+     * no count is in progress and votes have been added since the last one, so that they can be shown while the
+     * model changes.
+     * @return The counts.
+     */
+    private CountsTableModel.Counts takeCounts() {
+        ArrayList<Candidate> candidates = model.getCandidates();
+        RoundHistory history = model.getHistory();
+        int round = model.hasStarted() || model.isCountCurrent() ? history.getRoundCount() : 0;
+        CountsTableModel.Counts counts = new CountsTableModel.Counts(candidates.size());
+        for (int id = 0; id < candidates.size(); id++) {
+            counts.names[id] = candidates.get(id).getName();
+            counts.eliminated[id] = round > 0 && candidates.get(id).isEliminated();
+            counts.counts[id] = round == 0 ? model.getFirstPreferenceCount(id) : history.getCount(round, id);
+            if (round > 0 && history.isRecount(round)) {
+                counts.transfers[id] = "Recount";
+            } else if (round > 0 && history.getEliminatedCount(round) > 0) {
+                counts.transfers[id] = "+" + history.getTransfer(round, id);
             }
         }
+        return counts;
+    }
+
+    /**
+     * Shows counts that were taken from the model, repainting only the cells that changed.
+     * @param counts The counts.
+     */
+    private void showCounts(CountsTableModel.Counts counts) {
+        CountMetrics metrics = model.getMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
         
-        // Updates the model for the candidates table.
-        candidatesTable.setModel(new DefaultTableModel(rowData, columnNames) {
-            @Override
-            public boolean isCellEditable(int rowIndex, int columnIndex) {
-                return false; // Stops cells being edited.
-            }
-        });
+        countsModel.show(counts);
+        if (metrics != null) {
+            metrics.recordViewUpdate(start);
+        }
     }
 
     /**
@@ -87,6 +140,10 @@ public class AVCountingView implements Observer {
         // Hooks up the controller on the action listeners.
         startButton.addActionListener((e) -> controller.startCounting());
         redistributeButton.addActionListener((e) -> controller.redistribute());
+        completeButton.addActionListener((e) -> controller.runToCompletion());
+        cancelButton.addActionListener((e) -> controller.cancel());
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
         
         // Lays out the components.
         panel.setLayout(new BorderLayout());
@@ -95,8 +152,11 @@ public class AVCountingView implements Observer {
         panel.add(buttonsPanel, BorderLayout.PAGE_END);
         
         buttonsPanel.setLayout(new FlowLayout(FlowLayout.CENTER));
+        buttonsPanel.add(progressBar);
         buttonsPanel.add(startButton);
         buttonsPanel.add(redistributeButton);
+        buttonsPanel.add(completeButton);
+        buttonsPanel.add(cancelButton);
         
         panel.setPreferredSize(PANEL_SIZE);
     }
@@ -109,12 +169,34 @@ public class AVCountingView implements Observer {
         return panel;
     }
     
+    /**
+     * Shows the progress of loading or counting (can be called from any thread).
+     * @param round The round being counted (0 while loading).
+     * @param processed The number of ballots processed so far.
+     * @param total The number of ballots to process (-1 if it is not known).
+     */
+    public void showProgress(int round, long processed, long total) {
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setIndeterminate(total < 0);
+            progressBar.setMaximum(100);
+            progressBar.setValue(total > 0 ? (int) (processed * 100 / total) : 0);
+            if (round == 0) {
+                progressBar.setString("Loaded " + processed + " votes");
+            } else {
+                progressBar.setString("Round " + round + ": " + processed + " of " + total + " votes");
+            }
+        });
+    }
+    
     /**
      * Disables starting.
      */
     public void disableStart() {
         startButton.setEnabled(false);
         redistributeButton.setEnabled(true);
+        completeButton.setEnabled(true);
+        cancelButton.setEnabled(false);
+        progressBar.setIndeterminate(false);
     }
     
     /**
@@ -123,6 +205,18 @@ public class AVCountingView implements Observer {
     public void enableStart() {
         startButton.setEnabled(true);
         redistributeButton.setEnabled(false);
+        completeButton.setEnabled(true);
+        cancelButton.setEnabled(false);
+        progressBar.setIndeterminate(false);
     }
     
+    /**
+     * Disables counting while a load or count is running, allowing it to be cancelled.
+     */
+    public void disableCounting() {
+        startButton.setEnabled(false);
+        redistributeButton.setEnabled(false);
+        completeButton.setEnabled(false);
+        cancelButton.setEnabled(true);
+    }
 }
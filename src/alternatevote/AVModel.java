@@ -2,120 +2,773 @@ package alternatevote;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Random;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A model for alternate voting.
  * @author ryansmith
  */
-public class AVModel extends Observable {
-    private final ArrayList<Vote> votes = new ArrayList<>();
+public class AVModel {
+    private BallotStore ballots = new BallotStore();
+    private final CandidateRegistry registry;
     private final ArrayList<Candidate> candidates = new ArrayList<>();
+    private final PileCounter counter = new PileCounter();
+    private final Progress progress = new Progress();
+    private RoundHistory history;
+    private TieBreaker tieBreaker = new RandomTieBreaker();
+    private boolean bulkExclusion = false;
+    private BallotJournal journal = null;
+    private CountMetrics metrics = null;
+    private long memoryLimit = Long.MAX_VALUE;
+    private final int[] eliminatedIds;
+    private final int[] firstPreferences;
+    private final CopyOnWriteArrayList<ModelListener> listeners = new CopyOnWriteArrayList<>();
+    private int changeDepth = 0;
+    private int appendedFrom = -1;
+    private boolean ballotsReplaced = false;
+    private boolean countReset = false;
+    private int firstCountedRound = 0;
+    private int lastCountedRound = 0;
+    private int round = 0;
+    private int countedWeight = 0;
+    private boolean started = false;
     
     public AVModel() {
-        addCandidate("Cameron");
-        addCandidate("Corbyn");
-        addCandidate("Farron");
-        addCandidate("Sturgeon");
+        this(new ArrayList<>(Arrays.asList("Cameron", "Corbyn", "Farron", "Sturgeon")));
+    }
+    
+    /**
+     * Creates a model for a different set of candidates.
+     * @param candidateNames The names of the candidates in ID order.
+     * @throws IllegalArgumentException If there are more than CandidateRegistry.MAX_CANDIDATES candidates.
+     * @pre candidateNames is not null and has no duplicate names.
+     */
+    public AVModel(ArrayList<String> candidateNames) {
+        this(new CandidateRegistry(candidateNames));
+    }
+    
+    /**
+     * Creates a model for the candidates in a registry, such as one loaded from a file.
+     * @param registry The candidates.
+     * @pre registry is not null.
+     */
+    public AVModel(CandidateRegistry registry) {
+        assert registry != null;
+        this.registry = registry;
+        for (int id = 0; id < registry.size(); id++) {
+            candidates.add(new Candidate(registry, id));
+        }
+        counter.setProgress(progress);
+        history = new RoundHistory(registry.size());
+        eliminatedIds = new int[registry.size()];
+        firstPreferences = new int[registry.size()];
     }
     
     /**
      * Starts counting using first preferences.
+     * @throws IOException If the start cannot be journaled (counting does not start).
+     * @throws CancellationException If counting is cancelled (counting is reset).
      * @pre Counting has not started.
      * @pre candidates is not null.
      * @post Votes have been counted for first preferences.
      */
-    public void startCounting() {
+    public void startCounting() throws IOException {
         assert hasStarted() == false;
         assert candidates != null;
-        candidates.forEach((candidate) -> candidate.resetElimination());
-        countVotes();
+        long start = metrics == null ? 0 : System.nanoTime();
+        if (journal != null) {
+            journal.appendStart();
+        }
+        registry.resetEliminations();
+        history = new RoundHistory(registry.size());
+        round = 1;
+        markCountReset();
+        try {
+            countVotes();
+            recordRound(0, false);
+            if (metrics != null) {
+                metrics.recordRound(start, ballots.size());
+            }
+        } catch (CancellationException ex) {
+            resetCancelledCount(ex);
+            throw ex;
+        }
     }
     
     /**
      * Redistributes votes from eliminated candidates.
+     * @throws IOException If the round cannot be journaled (the round is not counted).
+     * @throws CancellationException If counting is cancelled (counting is reset).
      * @pre Counting has started.
      * @post Votes have been counted for highest available preferences.
      */
-    public void redistribute() {
+    public void redistribute() throws IOException {
         assert hasStarted() == true;
-        updateCandidates();
-        countVotes();
+        long start = metrics == null ? 0 : System.nanoTime();
+        redistributeEliminated(updateCandidates(), start);
+    }
+    
+    /**
+     * Replays a round recovered from a journal, eliminating the same candidates as the original round.
+     * @param ids The indexes of the candidates eliminated before the round.
+     * @throws IOException If the round cannot be journaled.
+     * @throws Exception If a candidate has already been eliminated, so the journal is corrupt.
+     * @throws CancellationException If counting is cancelled (counting is reset).
+     * @pre Counting has started.
+     * @pre Each index is between 0 and the number of candidates - 1.
+     * @post Votes have been counted for highest available preferences.
+     */
+    private void replayRound(int[] ids) throws IOException, Exception {
+        assert hasStarted() == true;
+        long start = metrics == null ? 0 : System.nanoTime();
+        for (int index = 0; index < ids.length; index++) {
+            if (registry.isEliminated(ids[index])) {
+                for (int previous = 0; previous < index; previous++) {
+                    registry.resetElimination(ids[previous]);
+                }
+                throw new Exception("The journal is corrupt: candidate " + ids[index] + " is eliminated twice.");
+            }
+            eliminatedIds[index] = ids[index];
+            registry.eliminate(ids[index]);
+        }
+        redistributeEliminated(ids.length, start);
+    }
+    
+    /**
+     * Counts the next round after candidates have been eliminated.
+     * @param eliminatedCount The number of eliminated candidates, whose indexes are at the start of eliminatedIds.
+     * @param startNanos The System.nanoTime when the round started, for the metrics.
+     * @throws IOException If the round cannot be journaled (the candidates are no longer eliminated).
+     * @throws CancellationException If counting is cancelled (counting is reset).
+     */
+    private void redistributeEliminated(int eliminatedCount, long startNanos) throws IOException {
+        // Journals the round before counting it, so that a round is never counted without being journaled.
+        if (journal != null) {
+            try {
+                journal.appendRound(eliminatedIds, eliminatedCount);
+            } catch (IOException ex) {
+                for (int index = 0; index < eliminatedCount; index++) {
+                    registry.resetElimination(eliminatedIds[index]);
+                }
+                throw ex;
+            }
+        }
+        round += 1;
+        long transferred = 0;
+        boolean recounted = counter.getCountedVotes() != ballots.size();
+        
+        // Only moves the eliminated candidates' piles unless votes were added since the piles were counted.
+        try {
+            if (recounted) {
+                countVotes();
+                transferred = ballots.size();
+            } else {
+                if (eliminatedCount > 0) {
+                    for (int index = 0; index < eliminatedCount; index++) {
+                        transferred += counter.getPileSize(eliminatedIds[index]);
+                    }
+                    progress.start(round, transferred);
+                    counter.redistribute(registry, eliminatedIds, eliminatedCount);
+                }
+            }
+            recordRound(eliminatedCount, recounted);
+            if (metrics != null) {
+                metrics.recordRound(startNanos, transferred);
+            }
+        } catch (CancellationException ex) {
+            resetCancelledCount(ex);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Recovers the votes and count from a journal, then journals every vote and round after it so that they can be
+     * recovered after a crash. Votes loaded from a file are saved in a snapshot instead of being journaled one by one.
+     * The journal is replayed in the order it was written, so votes added after a count finished are not counted in it.
+     * @param journal The journal, which must not be used elsewhere.
+     * @throws IOException If the journal cannot be read or opened.
+     * @throws Exception If the journal is corrupt or for different candidates.
+     * @throws CancellationException If replaying the count is cancelled (counting is reset).
+     * @pre There are no ballots and counting has not started.
+     * @post The ballots and rounds match the journal and later changes are journaled.
+     */
+    public void recover(BallotJournal journal) throws IOException, Exception {
+        assert ballots.size() == 0 && hasStarted() == false;
+        assert journal != null;
+        BallotJournal.Recovery recovery = journal.recover(candidates.size());
+        
+        // Replays the records before attaching the journal so that they are not journaled again.
+        beginChanges();
+        try {
+            addLoaded(recovery.getBallots());
+            if (recovery.getRounds() != null) {
+                restoreCount(recovery.getRounds(), recovery.getRoundCounts());
+            }
+            for (BallotJournal.Record record : recovery.getRecords()) {
+                BallotJournal.RecordType type = record.getType();
+                
+                // Rejects a record that could not have been journaled where it is, rather than replaying another count.
+                boolean outOfOrder = type == BallotJournal.RecordType.ROUND
+                    ? !hasStarted()
+                    : hasStarted() && type != BallotJournal.RecordType.RESET;
+                if (outOfOrder) {
+                    throw new Exception("The journal is corrupt: it has a " + type.name().toLowerCase() + " record out of order.");
+                }
+                if (type == BallotJournal.RecordType.BALLOTS) {
+                    addLoaded(record.getBallots());
+                } else if (type == BallotJournal.RecordType.START) {
+                    startCounting();
+                } else if (type == BallotJournal.RecordType.ROUND) {
+                    replayRound(record.getEliminatedIds());
+                } else if (type == BallotJournal.RecordType.RESET) {
+                    resetCounting();
+                }
+            }
+            tallyFirstPreferences();
+            this.journal = journal;
+        } finally {
+            endChanges();
+        }
+    }
+    
+    /**
+     * Counts every round until a candidate has a majority, continuing a count that has already started.
+     * Listeners are only told about the rounds once at the end.
+     * @return The history of the rounds that were counted.
+     * @throws IOException If a round cannot be journaled (counting stops after the last journaled round).
+     * @throws CancellationException If counting is cancelled (counting is reset).
+     * @post Counting has finished and the history holds every round.
+     */
+    public RoundHistory runToCompletion() throws IOException {
+        beginChanges();
+        try {
+            if (!hasStarted()) {
+                startCounting();
+            }
+            while (hasStarted()) {
+                redistribute();
+            }
+        } finally {
+            endChanges();
+        }
+        return history;
+    }
+    
+    /**
+     * Gets the history of the rounds counted since counting started.
+     * @return The history (empty if counting has not started).
+     */
+    public RoundHistory getHistory() {
+        return history;
+    }
+    
+    /**
+     * Requests that the load or count running on another thread stops. A request made between tasks stops the next
+     * load or count, and is cleared once a task has stopped for it.
+     * @post The running task stops at its next progress update.
+     */
+    public void cancel() {
+        progress.cancel();
+    }
+    
+    /**
+     * Gets the progress of loading and counting so that it can be listened to.
+     * @return The progress.
+     */
+    public Progress getProgress() {
+        return progress;
+    }
+    
+    /**
+     * Gets the round being counted.
+     * @return The round (0 if counting has not started).
+     */
+    public int getRound() {
+        return round;
     }
 
     /**
      * Loads votes from a CSV file.
      * @param absolutePath The absolute path the file to load votes from.
      * @throws FileNotFoundException
-     * @throws Exception 
-     * @post Votes in the CSV file have been added to the existing votes.
+     * @throws Exception If a vote is invalid (the message includes the line number).
+     * @throws CancellationException If loading is cancelled (none of the file's votes are added).
+     * @post Votes in the CSV file before any invalid line have been added to the existing votes and saved in a
+     * snapshot.
      */
     public void loadVotes(String absolutePath) throws FileNotFoundException, Exception {
         assert hasStarted() == false;
-        try (Scanner scanner = new Scanner(new File(absolutePath))) {
-            scanner.useDelimiter("\n"); // Each vote is separated by a new line.
-            while (scanner.hasNext()) {
-                String vote = scanner.next();
-                String[] ids = vote.split(","); // Each preference is separated by a comma.
-                
-                // Converts the candidate IDs from strings to integers.
-                ArrayList<Integer> candidateIds = new ArrayList<>();
-                for (String id : ids) {
-                    candidateIds.add(Integer.parseInt(id));
+        CsvBallotLoader loader = new CsvBallotLoader(candidates.size());
+        loader.setProgress(progress);
+        loader.setMemoryLimit(memoryLimit);
+        progress.start(0, -1);
+        long start = metrics == null ? 0 : System.nanoTime();
+        int weightBefore = ballots.getTotalWeight();
+        int sizeBefore = ballots.size();
+        BallotStore before = ballots.snapshot();
+        Exception failure = null;
+        beginChanges();
+        try {
+            // Removes the votes read before a cancellation, so that loading the file again does not add them twice.
+            try {
+                loader.load(absolutePath, ballots);
+            } catch (CancellationException ex) {
+                ballots.rollBack(before);
+                progress.clearCancel();
+                throw ex;
+            } catch (Exception ex) {
+                failure = ex;
+            }
+            recordIngest(start, weightBefore);
+            tallyFirstPreferences();
+            markAppended(sizeBefore);
+            
+            // Saves the votes that were added even when loading failed part way, so that the journal matches the model,
+            // without hiding why loading failed.
+            try {
+                saveSnapshot();
+            } catch (IOException ex) {
+                if (failure == null) {
+                    throw ex;
                 }
-                addVote(candidateIds);
+                failure.addSuppressed(ex);
             }
+        } finally {
+            endChanges();
+        }
+        if (failure != null) {
+            throw failure;
         }
     }
 
     /**
-     * Adds a vote.
+     * Loads votes from a binary ballot file saved by saveVotes.
+     * @param absolutePath The absolute path the file to load votes from.
+     * @throws FileNotFoundException
+     * @throws Exception If the file is not a valid ballot file for the candidates, or its ballots need more than the
+     * memory limit.
+     * @post Votes in the file have been added to the existing votes.
+     */
+    public void loadBinaryVotes(String absolutePath) throws FileNotFoundException, Exception {
+        assert hasStarted() == false;
+        long start = metrics == null ? 0 : System.nanoTime();
+        int weightBefore = ballots.getTotalWeight();
+        
+        // Checks the file's size before loading it, since its arrays are read into a store of at least that size.
+        checkMemory(estimateMemory(ballots) + new File(absolutePath).length());
+        BallotStore loaded = BinaryBallotFile.load(absolutePath, candidates.size());
+        checkMemory(estimateMemory(ballots) + estimateMemory(loaded));
+        beginChanges();
+        try {
+            addLoaded(loaded);
+            recordIngest(start, weightBefore);
+            tallyFirstPreferences();
+            saveSnapshot();
+        } finally {
+            endChanges();
+        }
+    }
+
+    /**
+     * Saves the votes to a binary ballot file that can be loaded by loadBinaryVotes. It must be called on the thread
+     * that changes the model, since the file is written from the store's arrays as they are.
+     * @param absolutePath The absolute path the file to save votes to.
+     * @throws IOException
+     * @post The file holds the votes.
+     */
+    public void saveVotes(String absolutePath) throws IOException {
+        BinaryBallotFile.save(ballots, candidates.size(), absolutePath);
+    }
+
+    /**
+     * Adds a vote. The model must only be changed on one thread, so votes from many threads should be submitted
+     * through a VoteSubmitter.
      * @param preferenceIds The candidate IDs of the preferences.
      * @throws Exception
-     * @pre votes is not null.
+     * @pre ballots is not null.
      * @pre candidates is not null.
      * @pre preferenceIds is not null.
-     * @post The new vote is added to the votes.
+     * @post The new vote is added to the ballots.
      */
     public void addVote(ArrayList<Integer> preferenceIds) throws Exception {
         assert hasStarted() == false;
-        assert votes != null;
+        assert ballots != null;
         assert candidates != null;
         assert preferenceIds != null;
-        ArrayList<Candidate> preferences = new ArrayList<>();
+        long start = metrics == null ? 0 : System.nanoTime();
+        int[] preferences = new int[preferenceIds.size()];
+        
+        // Gets the candidate index of each of the preference IDs.
+        for (int rank = 0; rank < preferences.length; rank++) {
+            preferences[rank] = preferenceIds.get(rank);
+        }
+        validateVote(preferences, preferences.length, candidates.size());
+        
+        // Adds the vote to the existing ballots once it is durable in the journal.
+        if (journal != null) {
+            journal.appendBallot(preferences, preferences.length);
+            journal.flush();
+        }
+        int sizeBefore = ballots.size();
+        ballots.add(preferences, preferences.length);
+        firstPreferences[preferences[0]] += 1;
+        recordIngest(start, ballots.getTotalWeight() - 1);
+        markAppended(sizeBefore);
+        saveSnapshotIfDue();
+    }
+    
+    /**
+     * Adds many votes with a single change notification.
+     * @param votes The candidate IDs of the preferences of each vote.
+     * @throws Exception If a vote is invalid (the message includes the number of the vote).
+     * @pre votes is not null.
+     * @post Either all of the votes have been added to the ballots or none of them have.
+     */
+    public void addVotes(ArrayList<ArrayList<Integer>> votes) throws Exception {
+        assert hasStarted() == false;
+        assert votes != null;
+        long start = metrics == null ? 0 : System.nanoTime();
+        int weightBefore = ballots.getTotalWeight();
+        int[][] preferences = new int[votes.size()][];
+        
+        // Validates every vote before any are added.
+        for (int index = 0; index < votes.size(); index++) {
+            ArrayList<Integer> preferenceIds = votes.get(index);
+            preferences[index] = new int[preferenceIds.size()];
+            for (int rank = 0; rank < preferences[index].length; rank++) {
+                preferences[index][rank] = preferenceIds.get(rank);
+            }
+            try {
+                validateVote(preferences[index], preferences[index].length, candidates.size());
+            } catch (Exception ex) {
+                throw new Exception("Vote " + (index + 1) + ": " + ex.getMessage());
+            }
+        }
+        
+        // Adds the votes to the existing ballots once they are durable in the journal, waiting for one force.
+        if (journal != null) {
+            for (int[] vote : preferences) {
+                journal.appendBallot(vote, vote.length);
+            }
+            journal.flush();
+        }
+        int sizeBefore = ballots.size();
+        for (int[] vote : preferences) {
+            ballots.add(vote, vote.length);
+            firstPreferences[vote[0]] += 1;
+        }
+        recordIngest(start, weightBefore);
+        markAppended(sizeBefore);
+        saveSnapshotIfDue();
+    }
+    
+    /**
+     * Adds a batch of ballots that have already been validated, such as from a stream, with a single change
+     * notification. The first-preference tallies are updated from the batch without a recount.
+     * @param batch The ballots to add.
+     * @throws IOException If the batch cannot be journaled or forced to disk (none of the ballots are added).
+     * @pre Counting has not started.
+     * @pre batch is not null and is not collapsing.
+     * @pre Every ballot in batch is a valid vote for the candidates.
+     * @post The ballots are added after the existing ballots and are durable in the journal, if there is one.
+     */
+    public void addBallots(BallotStore batch) throws IOException {
+        assert hasStarted() == false;
+        assert batch != null && !batch.isCollapsing();
+        long start = metrics == null ? 0 : System.nanoTime();
+        int weightBefore = ballots.getTotalWeight();
+        if (journal != null) {
+            journal.appendBallots(batch);
+            journal.flush();
+        }
+        int sizeBefore = ballots.size();
+        ballots.addAll(batch);
+        for (int ballot = 0; ballot < batch.size(); ballot++) {
+            firstPreferences[batch.getPreference(ballot, 0)] += 1;
+        }
+        recordIngest(start, weightBefore);
+        markAppended(sizeBefore);
+        saveSnapshotIfDue();
+    }
+    
+    /**
+     * Gets the number of votes that give a candidate as their first preference, which is kept up to date as votes
+     * are added so that running totals can be shown before counting starts.
+     * @param id The index of the candidate.
+     * @return The number of votes.
+     */
+    public int getFirstPreferenceCount(int id) {
+        return firstPreferences[id];
+    }
+    
+    /**
+     * Adds a listener for the changes to the model.
+     * @param listener The listener.
+     * @pre listener is not null.
+     * @post The listener is told about later changes.
+     */
+    public void addListener(ModelListener listener) {
+        assert listener != null;
+        listeners.add(listener);
+    }
+    
+    /**
+     * Removes a listener.
+     * @param listener The listener.
+     * @post The listener is not told about later changes.
+     */
+    public void removeListener(ModelListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Begins a batch of changes so that listeners are only told about them once when the batch ends.
+     * @post Changes are not delivered until the matching call to endChanges.
+     */
+    public void beginChanges() {
+        changeDepth += 1;
+    }
+    
+    /**
+     * Ends a batch of changes, telling listeners about the changes made during the outermost batch.
+     * @pre A batch has begun.
+     * @post Listeners are told about the changes if this ended the outermost batch.
+     */
+    public void endChanges() {
+        assert changeDepth > 0;
+        changeDepth -= 1;
+        if (changeDepth == 0) {
+            fireChanges();
+        }
+    }
+    
+    /**
+     * Validates the preferences of a vote.
+     * @param preferenceIds The candidate IDs of the preferences.
+     * @param length The number of preferences to take from preferenceIds.
+     * @param candidateCount The number of candidates.
+     * @throws Exception If the vote is invalid.
+     * @pre preferenceIds is not null.
+     */
+    static void validateVote(int[] preferenceIds, int length, int candidateCount) throws Exception {
+        validateVote(preferenceIds, length, candidateCount, new long[(candidateCount + 63) / 64]);
+    }
+    
+    /**
+     * Validates the preferences of a vote, finding duplicates with a bitset of the candidates already selected.
+     * @param preferenceIds The candidate IDs of the preferences.
+     * @param length The number of preferences to take from preferenceIds.
+     * @param candidateCount The number of candidates.
+     * @param selected A bitset with a bit for each candidate, which must be clear (it is cleared again afterwards).
+     * @throws Exception If the vote is invalid.
+     * @pre preferenceIds is not null.
+     * @pre selected has a bit for each candidate.
+     */
+    static void validateVote(int[] preferenceIds, int length, int candidateCount, long[] selected) throws Exception {
+        assert preferenceIds != null;
+        assert selected.length * 64 >= candidateCount;
         
         // Validates the number of preferences.
-        if (preferenceIds.size() > candidates.size()) {
+        if (length > candidateCount) {
             throw new Exception("Too many preferences selected.");
-        } else if (preferenceIds.size() < 1) {
+        } else if (length < 1) {
             throw new Exception("No preferences selected.");
         }
         
-        // Gets the candidate matching each of the preference IDs.
-        for (Integer id : preferenceIds) {
-            // Validates preference before adding it.
-            if (id < 0 || id >= candidates.size()) {
-                throw new Exception("Candidate could not be found.");
-            } else if (preferenceIds.indexOf(id) != preferences.size()) {
-                throw new Exception("Candidate cannot be selected twice.");
+        // Validates each preference against the candidates and the preferences before it.
+        String error = null;
+        int rank = 0;
+        for (; rank < length && error == null; rank++) {
+            int id = preferenceIds[rank];
+            if (id < 0 || id >= candidateCount) {
+                error = "Candidate could not be found.";
+            } else if ((selected[id >>> 6] & (1L << id)) != 0) {
+                error = "Candidate cannot be selected twice.";
+            } else {
+                selected[id >>> 6] |= 1L << id;
             }
-            preferences.add(candidates.get(id));
         }
         
-        // Adds the vote to the existing votes.
-        votes.add(new Vote(preferences));
-        emitChange();
+        // Clears the bits of the valid preferences so that the bitset can be reused.
+        for (int previous = 0; previous < rank; previous++) {
+            int id = preferenceIds[previous];
+            if (id >= 0 && id < candidateCount) {
+                selected[id >>> 6] = 0;
+            }
+        }
+        if (error != null) {
+            throw new Exception(error);
+        }
+    }
+
+    /**
+     * Sets whether identical rankings are collapsed into one weighted ballot as votes are added.
+     * @param collapsing True to collapse identical rankings.
+     * @pre There are no ballots.
+     * @post New votes are stored with the given ingestion mode.
+     */
+    public void setCollapsing(boolean collapsing) {
+        assert ballots.size() == 0;
+        ballots = new BallotStore(collapsing);
+        markReplaced();
+    }
+
+    /**
+     * Sets the metrics that loading, counting and notifying listeners are recorded in.
+     * @param metrics The metrics, which can be shared with other models (null to record nothing).
+     * @post Later loads, votes, rounds and notifications are recorded in the metrics.
+     */
+    public void setMetrics(CountMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the metrics that the model records in, so that views can record their updates too.
+     * @return The metrics (null if none are recorded).
+     */
+    public CountMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * Gets the votes.
-     * @return the votes.
+     * Sets the most memory that the ballots and piles may need, which loading checks as ballots are added.
+     * @param bytes The limit in bytes, as estimated by estimateMemory.
+     * @pre bytes is positive.
+     * @post Later loads fail once the ballots need more than the limit.
      */
-    public ArrayList<Vote> getVotes() {
-        return votes;
+    public void setMemoryLimit(long bytes) {
+        assert bytes > 0;
+        memoryLimit = bytes;
+    }
+
+    /**
+     * Estimates the memory needed to count the ballots.
+     * @return The bytes used by the ballots, plus an int pile entry and a short cursor for each ballot.
+     */
+    public long estimateMemory() {
+        return estimateMemory(ballots);
+    }
+
+    /**
+     * Estimates the memory needed to count a store of ballots.
+     * @param ballots The ballots.
+     * @return The bytes used by the ballots, plus an int pile entry and a short cursor for each ballot.
+     */
+    static long estimateMemory(BallotStore ballots) {
+        return ballots.getFootprint() + (long) ballots.size() * (Integer.BYTES + Short.BYTES);
+    }
+
+    /**
+     * Sets the number of threads used to count votes.
+     * @param parallelism The number of threads (1 counts on the calling thread).
+     * @pre parallelism is at least 1.
+     * @post Later counts use the given number of threads and give the same counts.
+     */
+    public void setParallelism(int parallelism) {
+        assert parallelism >= 1;
+        counter.setParallelism(parallelism);
+    }
+
+    /**
+     * Sets the strategy for breaking ties between the candidates with the lowest count.
+     * @param tieBreaker The tie breaker.
+     * @pre tieBreaker is not null.
+     * @post Later eliminations use the tie breaker.
+     */
+    public void setTieBreaker(TieBreaker tieBreaker) {
+        assert tieBreaker != null;
+        this.tieBreaker = tieBreaker;
+    }
+
+    /**
+     * Sets whether every candidate that is mathematically defeated is excluded in one round. The lowest candidates
+     * are defeated together when their combined votes are fewer than the votes of the next candidate, since
+     * eliminating them one at a time could never lift any of them above that candidate. The winner is the same but
+     * long ballots take far fewer rounds.
+     * @param bulkExclusion True to exclude defeated candidates in bulk.
+     * @post Later rounds exclude defeated candidates in bulk, or one candidate at a time.
+     */
+    public void setBulkExclusion(boolean bulkExclusion) {
+        this.bulkExclusion = bulkExclusion;
+    }
+
+    /**
+     * Reruns the count with different tie breaker seeds to find how often ties change the winner.
+     * @param runs The number of times to run the count.
+     * @param seed The seed that each run's seed is mixed from.
+     * @return The number of runs won by each candidate.
+     * @pre runs is at least 1.
+     */
+    public TieAnalysis analyseTies(int runs, long seed) {
+        assert runs >= 1;
+        return TieAnalysis.analyse(ballots, candidates.size(), runs, seed, counter.getParallelism());
+    }
+
+    /**
+     * Gets the ballots.
+     * @return the ballots.
+     */
+    public BallotStore getBallots() {
+        return ballots;
+    }
+
+    /**
+     * Gets a vote from the ballots.
+     * @param index The index of the vote.
+     * @return the vote.
+     * @pre index is between 0 and the number of ballots - 1.
+     */
+    public Vote getVote(int index) {
+        assert index >= 0 && index < ballots.size();
+        return new Vote(ballots, index, candidates, hasCursor(index) ? counter : null);
+    }
+
+    /**
+     * Gets the candidate index of a vote's current choice without creating a Vote.
+     * @param index The index of the vote.
+     * @return The candidate index of the highest continuing preference (-1 if there are none).
+     * @pre index is between 0 and the number of ballots - 1.
+     */
+    public int getChoiceId(int index) {
+        assert index >= 0 && index < ballots.size();
+        if (hasCursor(index)) {
+            return counter.getChoiceId(index);
+        }
+        
+        // Scans the preferences of votes that have not been counted.
+        int length = ballots.getLength(index);
+        for (int rank = 0; rank < length; rank++) {
+            int id = ballots.getPreference(index, rank);
+            if (!registry.isEliminated(id)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Takes a snapshot of the ballots and their current choices that a view can read on another thread while the
+     * model changes. It must be taken on the thread that changes the model, such as in a listener.
+     * @return The snapshot.
+     */
+    public BallotSnapshot snapshotBallots() {
+        boolean[] eliminated = new boolean[candidates.size()];
+        for (int id = 0; id < eliminated.length; id++) {
+            eliminated[id] = registry.isEliminated(id);
+        }
+        return new BallotSnapshot(ballots.snapshot(), eliminated);
+    }
+
+    /**
+     * Gets the registry that holds the candidates' state.
+     * @return the registry.
+     */
+    public CandidateRegistry getRegistry() {
+        return registry;
     }
 
     /**
@@ -127,19 +780,47 @@ public class AVModel extends Observable {
     }
     
     /**
-     * Determines if counting has started.
+     * Determines if counting has started (and no candidate has a majority yet).
      * @return True if counting has started.
-     * @pre candidates is not null.
      */
     public boolean hasStarted() {
+        return started;
+    }
+    
+    /**
+     * Determines if the rounds in the history counted every vote, so that no votes have been added since.
+     * @return True if there are rounds and they counted every vote.
+     */
+    public boolean isCountCurrent() {
+        return round > 0 && countedWeight == ballots.getTotalWeight();
+    }
+    
+    /**
+     * Determines if a vote's choice can be read from the counter's cursors.
+     * @param index The index of the vote.
+     * @return True if counting has started and the vote was counted.
+     */
+    private boolean hasCursor(int index) {
+        return round > 0 && index < counter.getCountedVotes();
+    }
+    
+    /**
+     * Records the round that has just been counted and whether counting should continue.
+     * @param eliminatedCount The number of candidates eliminated before the round, whose indexes are in eliminatedIds.
+     * @param recounted True if every ballot was recounted because votes were added since the last round.
+     * @pre candidates is not null.
+     * @post The round is in the history and hasStarted reflects the new counts.
+     */
+    private void recordRound(int eliminatedCount, boolean recounted) {
         assert candidates != null;
+        history.addRound(eliminatedIds, eliminatedCount, registry, recounted);
         int highestCount = 0;
         int totalCount = 0;
         
         // Determines the total startCount and the candidate with the highest startCount.
-        for (Candidate candidate : candidates) {
-            if (!candidate.isEliminated()) {
-                int candidateCount = candidate.getCount();
+        for (int id = 0; id < registry.size(); id++) {
+            if (!registry.isEliminated(id)) {
+                int candidateCount = registry.getCount(id);
                 totalCount += candidateCount;
                 if (candidateCount > highestCount) {
                     highestCount = candidateCount;
@@ -148,72 +829,343 @@ public class AVModel extends Observable {
         }
         
         // Determines if the round should be reset or incremented.
-        return !(totalCount < 1 || highestCount * 2 > totalCount);
+        started = !(totalCount < 1 || highestCount * 2 > totalCount);
+        markRoundCounted();
     }
     
     /**
      * Counts votes for candidates.
      * @pre candidates is not null.
-     * @pre votes is not null.
+     * @pre ballots is not null.
      */
     private void countVotes() {
         assert candidates != null;
-        assert votes != null;
-        candidates.forEach((candidate) -> candidate.resetCount());
-        votes.forEach((vote) -> vote.count());
-        emitChange();
+        assert ballots != null;
+        progress.start(round, ballots.size());
+        counter.count(registry, ballots);
+        countedWeight = ballots.getTotalWeight();
+    }
+    
+    /**
+     * Resets counting after a cancelled count left the piles incomplete.
+     * @post No candidates are eliminated, every count is 0 and counting has not started.
+     */
+    private void resetCounting() {
+        registry.resetEliminations();
+        registry.resetCounts();
+        history = new RoundHistory(registry.size());
+        round = 0;
+        started = false;
+        markCountReset();
+    }
+    
+    /**
+     * Resets a cancelled count and journals the reset, adding a failure to journal it to the cancellation.
+     * @param cause The cancellation.
+     * @post No candidates are eliminated, every count is 0 and counting has not started.
+     */
+    private void resetCancelledCount(CancellationException cause) {
+        resetCounting();
+        progress.clearCancel();
+        if (journal != null) {
+            try {
+                journal.appendReset();
+            } catch (IOException ex) {
+                cause.addSuppressed(ex);
+            }
+        }
+    }
+    
+    /**
+     * Restores a finished count from the counts saved with a snapshot. The count is not replayed, since votes may
+     * have been added after it finished.
+     * @param rounds The candidates eliminated before each round.
+     * @param roundCounts The count of each candidate in each round.
+     * @pre rounds and roundCounts have a round each, starting with the first round.
+     * @post The history holds the rounds and counting has not started.
+     */
+    private void restoreCount(ArrayList<int[]> rounds, ArrayList<int[]> roundCounts) {
+        assert rounds.size() == roundCounts.size() && !rounds.isEmpty();
+        registry.resetEliminations();
+        history = new RoundHistory(registry.size());
+        markCountReset();
+        for (int index = 0; index < rounds.size(); index++) {
+            int[] ids = rounds.get(index);
+            System.arraycopy(ids, 0, eliminatedIds, 0, ids.length);
+            for (int id : ids) {
+                registry.eliminate(id);
+            }
+            registry.setCounts(roundCounts.get(index));
+            round = index + 1;
+            history.addRound(eliminatedIds, ids.length, registry, false);
+            markRoundCounted();
+        }
+        
+        // Every ballot has a first preference, so the first round counted the whole weight.
+        countedWeight = 0;
+        for (int count : roundCounts.get(0)) {
+            countedWeight += count;
+        }
+        started = false;
     }
     
     /**
      * Updates the candidates preparing them for the next round of counting.
      * @pre candidates is not null.
-     * @pre votes is not null.
-     * @post One of the lowest scorers is eliminated (if there were any low scorers).
+     * @pre ballots is not null.
+     * @return The number of eliminated candidates, whose indexes are at the start of eliminatedIds.
+     * @post The defeated candidates are eliminated with bulk exclusion, or otherwise one of the lowest scorers is
+     * eliminated (if there were any low scorers).
      */
-    private void updateCandidates() {
+    private int updateCandidates() {
         assert candidates != null;
-        assert votes != null;
-        int lowestCount = votes.size();
-        ArrayList<Candidate> lowScorers = new ArrayList<>();
+        assert ballots != null;
+        if (bulkExclusion) {
+            int defeatedCount = findDefeated();
+            if (defeatedCount > 0) {
+                for (int index = 0; index < defeatedCount; index++) {
+                    registry.eliminate(eliminatedIds[index]);
+                }
+                return defeatedCount;
+            }
+        }
+        int lowestCount = ballots.getTotalWeight();
+        int[] lowScorers = new int[registry.size()];
+        int lowScorerCount = 0;
         
         // Finds the lowest scorers.
-        for (Candidate candidate : candidates) {
-            if (!candidate.isEliminated()) {
-                int candidateCount = candidate.getCount();
+        for (int id = 0; id < registry.size(); id++) {
+            if (!registry.isEliminated(id)) {
+                int candidateCount = registry.getCount(id);
                 if (candidateCount < lowestCount) {
-                    lowScorers.clear();
-                    lowScorers.add(candidate);
+                    lowScorers[0] = id;
+                    lowScorerCount = 1;
                     lowestCount = candidateCount;
                 } else if (candidateCount == lowestCount) {
-                    lowScorers.add(candidate);
+                    lowScorers[lowScorerCount++] = id;
                 }
             }
         }
         
-        // Randomly determines which of the low scorers to eliminate.
-        if (lowScorers.size() > 0) {
-            lowScorers.get((new Random()).nextInt(lowScorers.size())).eliminate();
+        // Uses the tie breaker to determine which of the low scorers to eliminate.
+        if (lowScorerCount > 0) {
+            eliminatedIds[0] = tieBreaker.choose(lowScorers, lowScorerCount);
+            registry.eliminate(eliminatedIds[0]);
+            return 1;
         }
+        return 0;
     }
     
     /**
-     * Emits a change to the subscribed observers.
-     * @post Observers are updated.
+     * Finds the largest group of lowest scorers whose combined count is less than the count of the next candidate.
+     * @return The number of defeated candidates, whose indexes are put at the start of eliminatedIds (0 if no
+     * candidate is defeated without breaking a tie).
      */
-    private void emitChange() {
-        setChanged();
-        notifyObservers();
+    private int findDefeated() {
+        long[] sorted = new long[registry.size()];
+        int continuingCount = 0;
+        
+        // Sorts the continuing candidates by count, packing each count above its index.
+        for (int id = 0; id < registry.size(); id++) {
+            if (!registry.isEliminated(id)) {
+                sorted[continuingCount++] = (long) registry.getCount(id) << 32 | id;
+            }
+        }
+        Arrays.sort(sorted, 0, continuingCount);
+        
+        // Finds the last position where the counts below it add up to less than the count at it.
+        long total = 0;
+        int defeatedCount = 0;
+        for (int index = 0; index < continuingCount - 1; index++) {
+            total += sorted[index] >>> 32;
+            if (total < sorted[index + 1] >>> 32) {
+                defeatedCount = index + 1;
+            }
+        }
+        for (int index = 0; index < defeatedCount; index++) {
+            eliminatedIds[index] = (int) sorted[index];
+        }
+        return defeatedCount;
     }
     
     /**
-     * Adds a candidate to the ballot.
-     * @param name The name of the candidate.
-     * @pre candidates is not null.
-     * @post The new candidate is added to candidates.
+     * Adds the ballots loaded from a file or journal. The loaded store is used as it is when there are no existing
+     * votes to avoid copying it, unless it would lose the collapsing of this store.
+     * @param loaded The loaded ballots.
+     * @throws Exception If collapsed ballots would be added to ballots that are not collapsed.
      */
-    private void addCandidate(String name) {
-        assert candidates != null;
-        candidates.add(new Candidate(name));
-        assert candidates.get(candidates.size() - 1).getName().equals(name);
+    private void addLoaded(BallotStore loaded) throws Exception {
+        if (ballots.size() == 0 && (loaded.isCollapsing() || !ballots.isCollapsing())) {
+            ballots = loaded;
+            markReplaced();
+        } else if (loaded.isCollapsing() && !ballots.isCollapsing()) {
+            throw new Exception("Collapsed votes cannot be added to votes that are not collapsed.");
+        } else {
+            int sizeBefore = ballots.size();
+            ballots.addAll(loaded);
+            markAppended(sizeBefore);
+        }
+    }
+    
+    /**
+     * Checks that ballots fit within the memory limit.
+     * @param bytes The memory the ballots and piles would need.
+     * @throws Exception If they need more than the limit.
+     */
+    private void checkMemory(long bytes) throws Exception {
+        if (bytes > memoryLimit) {
+            throw new Exception("The ballots need more than the memory limit of " + memoryLimit + " bytes.");
+        }
+    }
+    
+    /**
+     * Records the ballots added since a load or vote started in the metrics, if there are any.
+     * @param startNanos The System.nanoTime when adding started.
+     * @param weightBefore The total weight of the ballots before adding.
+     */
+    private void recordIngest(long startNanos, int weightBefore) {
+        if (metrics != null) {
+            metrics.recordIngest(startNanos, ballots.getTotalWeight() - weightBefore);
+            metrics.recordFootprint(ballots.size(), ballots.getFootprint());
+        }
+    }
+    
+    /**
+     * Saves a snapshot of the ballots and count to the journal, if there is one.
+     * @throws IOException If the snapshot cannot be saved.
+     */
+    private void saveSnapshot() throws IOException {
+        if (journal != null) {
+            journal.snapshot(ballots, history);
+        }
+    }
+    
+    /**
+     * Saves a snapshot once enough ballots have been journaled since the last one, so that recovery only replays
+     * a short tail of the journal. The ballots were durable before the snapshot, so a failure is not thrown here
+     * (which would report them as not added) but is kept by the journal and thrown by the next append.
+     */
+    private void saveSnapshotIfDue() {
+        if (journal != null && journal.isSnapshotDue()) {
+            try {
+                journal.snapshot(ballots, history);
+            } catch (IOException ex) {
+                // The journal throws the failure when the next change is journaled.
+            }
+        }
+    }
+    
+    /**
+     * Tallies the first preferences of every ballot again after a file has been loaded.
+     * @post The first-preference tallies match the ballots.
+     */
+    private void tallyFirstPreferences() {
+        Arrays.fill(firstPreferences, 0);
+        for (int ballot = 0; ballot < ballots.size(); ballot++) {
+            firstPreferences[ballots.getPreference(ballot, 0)] += ballots.getWeight(ballot);
+        }
+    }
+    
+    /**
+     * Marks the ballots from an index onwards as appended.
+     * @param from The index of the first new ballot.
+     * @post Listeners are told (at the end of the batch if a batch of changes has begun).
+     */
+    private void markAppended(int from) {
+        if (appendedFrom == -1 || from < appendedFrom) {
+            appendedFrom = from;
+        }
+        fireUnlessBatched();
+    }
+    
+    /**
+     * Marks the ballot store as replaced.
+     * @post Listeners are told (at the end of the batch if a batch of changes has begun).
+     */
+    private void markReplaced() {
+        ballotsReplaced = true;
+        fireUnlessBatched();
+    }
+    
+    /**
+     * Marks counting as reset, which discards the rounds counted before it.
+     * @post Listeners are told (at the end of the batch if a batch of changes has begun).
+     */
+    private void markCountReset() {
+        countReset = true;
+        firstCountedRound = 0;
+        lastCountedRound = 0;
+        fireUnlessBatched();
+    }
+    
+    /**
+     * Marks the current round as counted.
+     * @post Listeners are told (at the end of the batch if a batch of changes has begun).
+     */
+    private void markRoundCounted() {
+        if (firstCountedRound == 0) {
+            firstCountedRound = round;
+        }
+        lastCountedRound = round;
+        fireUnlessBatched();
+    }
+    
+    /**
+     * Tells the listeners about the marked changes unless a batch of changes has begun.
+     */
+    private void fireUnlessBatched() {
+        if (changeDepth == 0) {
+            fireChanges();
+        }
+    }
+    
+    /**
+     * Tells the listeners about the changes marked since they were last told, recording how long they took in the
+     * metrics if there are any.
+     * @post No changes are marked.
+     */
+    private void fireChanges() {
+        if (appendedFrom == -1 && !ballotsReplaced && !countReset && lastCountedRound == 0) {
+            return;
+        }
+        
+        // Clears the marks first so that listeners can change the model again.
+        int from = appendedFrom;
+        boolean replaced = ballotsReplaced;
+        boolean reset = countReset;
+        int firstRound = Math.max(firstCountedRound, 2);
+        int lastRound = lastCountedRound;
+        appendedFrom = -1;
+        ballotsReplaced = false;
+        countReset = false;
+        firstCountedRound = 0;
+        lastCountedRound = 0;
+        
+        long start = metrics == null ? 0 : System.nanoTime();
+        RoundHistory counted = history;
+        int to = ballots.size();
+        for (ModelListener listener : listeners) {
+            if (replaced) {
+                listener.ballotsReplaced();
+            } else if (from != -1) {
+                listener.ballotsAppended(from, to);
+            }
+            if (reset) {
+                listener.countReset();
+            }
+            
+            // Tells the listener about the eliminations before each counted round, then the last round's counts.
+            for (int eliminated = firstRound; eliminated <= lastRound; eliminated++) {
+                for (int index = 0; index < counted.getEliminatedCount(eliminated); index++) {
+                    listener.candidateEliminated(counted.getEliminatedId(eliminated, index), eliminated);
+                }
+            }
+            if (lastRound > 0) {
+                listener.roundCounted(counted, lastRound);
+            }
+        }
+        if (metrics != null) {
+            metrics.recordNotification(start);
+        }
     }
 }
@@ -4,8 +4,6 @@ import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.util.ArrayList;
-import java.util.Observable;
-import java.util.Observer;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
@@ -15,21 +13,24 @@ import static javax.swing.JOptionPane.showMessageDialog;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.SwingUtilities;
 
 /**
  * A view for listing votes and adding more.
  * @author ryansmith
  */
-public class AVVotesView implements Observer {
+public class AVVotesView implements ModelListener {
     private final AVController controller;
     private final AVModel model;
     
     // Defines components to be used throughout the view.
     private final JButton addButton = new JButton("Add vote");
     private final JButton loadButton = new JButton("Load votes");
+    private final JButton saveButton = new JButton("Save votes");
+    private final JButton watchButton = new JButton("Watch folder");
     private final JPanel panel = new JPanel();
     private final JTable votesTable = new JTable();
+    private final VotesTableModel tableModel;
     private final ArrayList<JComboBox<String>> comboBoxes = new ArrayList<>();
     private static final Dimension PANEL_SIZE = new Dimension(500, 500);
     
@@ -37,52 +38,68 @@ public class AVVotesView implements Observer {
         // Links MVC elements.
         this.model = model;
         this.controller = controller;
-        model.addObserver(this);
+        model.addListener(this);
         controller.setVotesView(this);
+        tableModel = new VotesTableModel(model);
+        votesTable.setModel(tableModel);
         
-        // Constructs and updates the controls.
+        // Constructs the controls.
         createControls();
-        update(model, null);
     }
 
     /**
-     * Updates the view when the model changes.
+     * Adds rows for the appended ballots.
      */
     @Override
-    public void update(Observable o, Object arg) {
-        ArrayList<Vote> votes = model.getVotes();
-        ArrayList<Candidate> candidates = model.getCandidates();
-        Object[][] rowData = new Object[votes.size()][candidates.size()];
-        Object[] columnNames = new Object[candidates.size()];
-        
-        // Adds columns to votes table.
-        for (int index = 0; index < candidates.size(); index++) {
-            columnNames[index] = "Preference " + (index + 1);
+    public void ballotsAppended(int from, int to) {
+        BallotSnapshot snapshot = model.snapshotBallots();
+        updateTable(() -> tableModel.ballotsAppended(snapshot, from, to));
+    }
+
+    /**
+     * Refreshes the whole table after the ballot store was replaced.
+     */
+    @Override
+    public void ballotsReplaced() {
+        BallotSnapshot snapshot = model.snapshotBallots();
+        updateTable(() -> tableModel.refresh(snapshot));
+    }
+
+    /**
+     * Repaints the choices after counting was reset.
+     */
+    @Override
+    public void countReset() {
+        BallotSnapshot snapshot = model.snapshotBallots();
+        updateTable(() -> tableModel.choicesChanged(snapshot));
+    }
+
+    /**
+     * Repaints the choices after a round was counted.
+     */
+    @Override
+    public void roundCounted(RoundHistory history, int round) {
+        BallotSnapshot snapshot = model.snapshotBallots();
+        updateTable(() -> tableModel.choicesChanged(snapshot));
+    }
+    
+    /**
+     * Updates the table on the event dispatch thread, since the model can change in the background. The update only
+     * reads the snapshot taken when the model changed, never the model itself.
+     * @param update The update to the table.
+     */
+    private void updateTable(Runnable update) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> updateTable(update));
+            return;
         }
+        CountMetrics metrics = model.getMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
         
-        // Displays the preferences for all votes.
-        for (int index = 0; index < votes.size(); index++) {
-            ArrayList<Candidate> preferences = votes.get(index).getPreferences();
-            for (int preference = 0; preference < preferences.size(); preference++) {
-                String prefText = "<html><span ";
-                
-                // Displays the current preference/choice in a different colour.
-                if (preferences.get(preference) == votes.get(index).getChoice()) {
-                    prefText += "style='color:red'";
-                }
-                
-                prefText += ">"+preferences.get(preference).getName()+"</span></html>";
-                rowData[index][preference] = prefText;
-            }
+        update.run();
+        if (metrics != null) {
+            metrics.recordViewUpdate(start);
         }
-        
-        // Updates the model for the votes table.
-        votesTable.setModel(new DefaultTableModel(rowData, columnNames) {
-            @Override
-            public boolean isCellEditable(int rowIndex, int columnIndex) {
-                return false; // Stops cells being edited.
-            }
-        });
     }
     
     /**
@@ -158,6 +175,8 @@ public class AVVotesView implements Observer {
         
         // Hooks up the controller on the action listeners.
         loadButton.addActionListener((e) -> controller.loadVotes());
+        saveButton.addActionListener((e) -> controller.saveVotes());
+        watchButton.addActionListener((e) -> controller.watchFolder());
         addButton.addActionListener((e) -> {
             // Uses the selected indexes of the combo boxes to determine the candidate IDs.
             ArrayList<Integer> candidateIds = new ArrayList<>();
@@ -180,6 +199,8 @@ public class AVVotesView implements Observer {
         buttonsPanel.setLayout(new FlowLayout(FlowLayout.CENTER));
         buttonsPanel.add(addButton);
         buttonsPanel.add(loadButton);
+        buttonsPanel.add(saveButton);
+        buttonsPanel.add(watchButton);
         
         
         panel.setPreferredSize(PANEL_SIZE);
@@ -216,4 +237,18 @@ public class AVVotesView implements Observer {
         loadButton.setEnabled(true);
         addButton.setEnabled(true);
     }
+    
+    /**
+     * Disables saving.
+     */
+    public void disableSaving() {
+        saveButton.setEnabled(false);
+    }
+    
+    /**
+     * Enables saving.
+     */
+    public void enableSaving() {
+        saveButton.setEnabled(true);
+    }
 }
@@ -0,0 +1,251 @@
+package alternatevote;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A generator of synthetic ballots for testing and benchmarking large elections. The same seed and settings always
+ * generate the same ballots.
+ *
+ * Candidates sit in ID order on a political spectrum. First preferences follow a popularity that falls with the
+ * candidate's ID (or is equal for a near tie), and each later preference is, with the correlation probability, the
+ * closest unranked candidate to the previous preference. A fraction of ballots can also be copies of a small set of
+ * popular rankings, which collapsing stores are good at.
+ * @author ryansmith
+ */
+public class BallotGenerator {
+    private static final int POPULAR_RANKINGS = 16;
+    private final int candidateCount;
+    private final Random random;
+    private final double[] popularity;
+    private LengthDistribution lengths = LengthDistribution.UNIFORM;
+    private double correlation = 0;
+    private double duplicateRatio = 0;
+    private int[][] popularRankings = null;
+    private final int[] unranked;
+    
+    /**
+     * The distribution of the number of preferences on each ballot.
+     */
+    public enum LengthDistribution {
+        /** Every ballot ranks every candidate. */
+        FULL,
+        /** Ballots rank between 1 and all of the candidates, uniformly. */
+        UNIFORM,
+        /** Ballots rank between 1 and 3 candidates. */
+        SHORT
+    }
+    
+    /**
+     * Creates a generator.
+     * @param candidateCount The number of candidates.
+     * @param seed The seed.
+     * @pre candidateCount is at least 1.
+     */
+    public BallotGenerator(int candidateCount, long seed) {
+        assert candidateCount >= 1;
+        this.candidateCount = candidateCount;
+        random = new Random(seed);
+        popularity = new double[candidateCount];
+        unranked = new int[candidateCount];
+        setNearTie(false);
+    }
+    
+    /**
+     * Sets the distribution of the number of preferences on each ballot.
+     * @param lengths The distribution.
+     */
+    public void setLengthDistribution(LengthDistribution lengths) {
+        this.lengths = lengths;
+        popularRankings = null;
+    }
+    
+    /**
+     * Sets how often a preference follows on from the previous preference's position on the spectrum.
+     * @param correlation The probability (0 for random later preferences).
+     * @pre correlation is between 0 and 1.
+     */
+    public void setCorrelation(double correlation) {
+        assert correlation >= 0 && correlation <= 1;
+        this.correlation = correlation;
+        popularRankings = null;
+    }
+    
+    /**
+     * Sets the fraction of ballots that are copies of a small set of popular rankings.
+     * @param duplicateRatio The fraction.
+     * @pre duplicateRatio is between 0 and 1.
+     */
+    public void setDuplicateRatio(double duplicateRatio) {
+        assert duplicateRatio >= 0 && duplicateRatio <= 1;
+        this.duplicateRatio = duplicateRatio;
+    }
+    
+    /**
+     * Sets whether every candidate is equally popular, so that the counts are close in every round.
+     * @param nearTie True for equally popular candidates.
+     */
+    public void setNearTie(boolean nearTie) {
+        double total = 0;
+        for (int id = 0; id < candidateCount; id++) {
+            popularity[id] = nearTie ? 1 : 1.0 / (id + 1);
+            total += popularity[id];
+        }
+        
+        // Turns the popularities into a cumulative distribution.
+        double cumulative = 0;
+        for (int id = 0; id < candidateCount; id++) {
+            cumulative += popularity[id] / total;
+            popularity[id] = cumulative;
+        }
+        popularRankings = null;
+    }
+    
+    /**
+     * Generates the next ballot.
+     * @param preferenceIds The array to put the candidate IDs of the preferences in.
+     * @return The number of preferences.
+     * @pre preferenceIds can hold a preference for every candidate.
+     */
+    public int next(int[] preferenceIds) {
+        assert preferenceIds.length >= candidateCount;
+        
+        // Copies a popular ranking for the fraction of duplicate ballots.
+        if (duplicateRatio > 0 && random.nextDouble() < duplicateRatio) {
+            if (popularRankings == null) {
+                popularRankings = new int[POPULAR_RANKINGS][];
+                for (int index = 0; index < POPULAR_RANKINGS; index++) {
+                    int[] ranking = new int[candidateCount];
+                    int length = generate(ranking);
+                    popularRankings[index] = Arrays.copyOf(ranking, length);
+                }
+            }
+            int[] ranking = popularRankings[random.nextInt(POPULAR_RANKINGS)];
+            System.arraycopy(ranking, 0, preferenceIds, 0, ranking.length);
+            return ranking.length;
+        }
+        return generate(preferenceIds);
+    }
+    
+    /**
+     * Writes generated ballots to a CSV file that can be loaded by AVModel.loadVotes.
+     * @param absolutePath The path of the file to write.
+     * @param ballotCount The number of ballots to write.
+     * @throws IOException
+     */
+    public void write(String absolutePath, int ballotCount) throws IOException {
+        int[] preferenceIds = new int[candidateCount];
+        StringBuilder line = new StringBuilder();
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(absolutePath), StandardCharsets.US_ASCII)) {
+            for (int ballot = 0; ballot < ballotCount; ballot++) {
+                int length = next(preferenceIds);
+                line.setLength(0);
+                for (int rank = 0; rank < length; rank++) {
+                    if (rank > 0) {
+                        line.append(',');
+                    }
+                    line.append(preferenceIds[rank]);
+                }
+                writer.append(line).append('\n');
+            }
+        }
+    }
+    
+    /**
+     * Generates a ballot file from the command line.
+     * @param args The path, the number of ballots and the options.
+     * @throws Exception If the arguments are invalid.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java -cp Coursework.jar alternatevote.BallotGenerator FILE BALLOTS [--candidates N] [--seed N]\n"
+                + "    [--lengths FULL|UNIFORM|SHORT] [--correlation P] [--duplicates P] [--near-tie]");
+            System.exit(2);
+        }
+        int candidateCount = 4;
+        long seed = 0;
+        for (int index = 2; index < args.length; index++) {
+            if (args[index].equals("--candidates")) {
+                candidateCount = Integer.parseInt(args[++index]);
+            } else if (args[index].equals("--seed")) {
+                seed = Long.parseLong(args[++index]);
+            }
+        }
+        
+        // Applies the remaining options once the generator exists.
+        BallotGenerator generator = new BallotGenerator(candidateCount, seed);
+        for (int index = 2; index < args.length; index++) {
+            String arg = args[index];
+            if (arg.equals("--lengths")) {
+                generator.setLengthDistribution(LengthDistribution.valueOf(args[++index]));
+            } else if (arg.equals("--correlation")) {
+                generator.setCorrelation(Double.parseDouble(args[++index]));
+            } else if (arg.equals("--duplicates")) {
+                generator.setDuplicateRatio(Double.parseDouble(args[++index]));
+            } else if (arg.equals("--near-tie")) {
+                generator.setNearTie(true);
+            } else if (arg.equals("--candidates") || arg.equals("--seed")) {
+                index += 1;
+            } else {
+                throw new Exception("Unknown option " + arg + ".");
+            }
+        }
+        generator.write(args[0], Integer.parseInt(args[1]));
+    }
+    
+    /**
+     * Generates a ranking from the popularity and correlation.
+     * @param preferenceIds The array to put the candidate IDs of the preferences in.
+     * @return The number of preferences.
+     */
+    private int generate(int[] preferenceIds) {
+        int length;
+        switch (lengths) {
+            case FULL:
+                length = candidateCount;
+                break;
+            case SHORT:
+                length = 1 + random.nextInt(Math.min(3, candidateCount));
+                break;
+            default:
+                length = 1 + random.nextInt(candidateCount);
+        }
+        
+        // Picks the first preference by popularity.
+        double point = random.nextDouble();
+        int first = 0;
+        while (first < candidateCount - 1 && popularity[first] < point) {
+            first += 1;
+        }
+        for (int id = 0; id < candidateCount; id++) {
+            unranked[id] = id;
+        }
+        int unrankedCount = candidateCount;
+        unranked[first] = unranked[--unrankedCount];
+        preferenceIds[0] = first;
+        
+        // Picks each later preference near the previous one or at random.
+        for (int rank = 1; rank < length; rank++) {
+            int position;
+            if (random.nextDouble() < correlation) {
+                position = 0;
+                int previous = preferenceIds[rank - 1];
+                for (int index = 1; index < unrankedCount; index++) {
+                    if (Math.abs(unranked[index] - previous) < Math.abs(unranked[position] - previous)) {
+                        position = index;
+                    }
+                }
+            } else {
+                position = random.nextInt(unrankedCount);
+            }
+            preferenceIds[rank] = unranked[position];
+            unranked[position] = unranked[--unrankedCount];
+        }
+        return length;
+    }
+}
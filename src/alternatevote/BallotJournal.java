@@ -0,0 +1,773 @@
+package alternatevote;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the ballots added to a model and the rounds of its count, so that the model can be
+ * recovered after a crash without importing the ballots again.
+ *
+ * The journal is a folder of numbered segment files and snapshots. Records are encoded into a buffer, and a commit
+ * thread writes the buffer to the latest segment and forces it to disk. Records appended while the thread is forcing
+ * wait in the buffer and are committed together by the next force (group commit). Appending only waits for the disk
+ * when the buffer is full, and flush waits until every record is durable. The model flushes the journal before it
+ * adds ballots, so added ballots survive a crash and a batch of ballots waits for a single force.
+ *
+ * Each record is a type byte, the payload length, a CRC32 of the payload and the payload, so a record torn by a crash
+ * is found and cut off when the journal is recovered. Once a commit or snapshot has failed, every later append fails
+ * too. A snapshot starts a new segment and saves the whole ballot store as a binary ballot file along with the
+ * eliminations and counts of the finished count. Recovery loads the latest snapshot and returns the records of the
+ * segments written after it in order. Older segments and snapshots are deleted once a snapshot is saved.
+ *
+ * The journal must only be appended to from the thread that changes the model, so that each snapshot holds exactly
+ * the ballots in the segments before it.
+ * @author ryansmith
+ */
+public class BallotJournal implements Closeable {
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 1 << 20;
+    private static final int MAGIC = 0x41564A31;
+    private static final byte BALLOTS = 1;
+    private static final byte START = 2;
+    private static final byte ROUND = 3;
+    private static final byte RESET = 4;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_PENDING = 1 << 22;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".avj";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".avb";
+    private static final String STATE_SUFFIX = ".state";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private final Path folder;
+    private final int snapshotInterval;
+    private final Object lock = new Object();
+    private final CRC32 checksum = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long appendedBytes = 0;
+    private long durableBytes = 0;
+    private int ballotsSinceSnapshot = 0;
+    private int candidateCount = -1;
+    private int segmentNumber = 0;
+    private FileChannel segment = null;
+    private Thread committer = null;
+    private IOException failure = null;
+    private boolean closing = false;
+    
+    /**
+     * Creates a journal in a folder, which is created if it does not exist.
+     * @param directory The path of the folder.
+     * @param snapshotInterval The number of ballots to journal between snapshots.
+     * @throws IOException If the folder cannot be created.
+     * @pre snapshotInterval is at least 1.
+     */
+    public BallotJournal(String directory, int snapshotInterval) throws IOException {
+        assert snapshotInterval >= 1;
+        folder = Files.createDirectories(Paths.get(directory));
+        this.snapshotInterval = snapshotInterval;
+    }
+    
+    /**
+     * Recovers the ballots and count from the latest snapshot and the segments after it, then opens the journal for
+     * appending. A record torn at the end of the last segment is cut off.
+     * @param candidateCount The number of candidates that the ballots must be for.
+     * @return The recovered ballots and count.
+     * @throws IOException If the journal cannot be read or opened.
+     * @throws Exception If the journal is corrupt or for different candidates.
+     * @pre The journal has not been recovered.
+     * @post Later records are appended to the last segment.
+     */
+    public Recovery recover(int candidateCount) throws IOException, Exception {
+        assert segment == null;
+        this.candidateCount = candidateCount;
+        Recovery recovery = new Recovery();
+        
+        // Loads the latest complete snapshot, which is only renamed into place once it has been saved.
+        int snapshotNumber = findLatest(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if (snapshotNumber != -1) {
+            recovery.ballots = BinaryBallotFile.load(getPath(SNAPSHOT_PREFIX, snapshotNumber, SNAPSHOT_SUFFIX).toString(), candidateCount);
+            readState(getPath(SNAPSHOT_PREFIX, snapshotNumber, STATE_SUFFIX), recovery);
+        } else {
+            recovery.ballots = new BallotStore();
+        }
+        
+        // Reads the records of the segments written since the snapshot in order.
+        ArrayList<Integer> segmentNumbers = findAll(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        segmentNumber = Math.max(snapshotNumber, 0);
+        for (int index = 0; index < segmentNumbers.size(); index++) {
+            int number = segmentNumbers.get(index);
+            if (number >= segmentNumber) {
+                Path path = getPath(SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+                long validSize = replaySegment(path, recovery);
+                if (validSize < Files.size(path)) {
+                    if (index + 1 < segmentNumbers.size()) {
+                        throw new Exception("Journal segment " + number + " is corrupt.");
+                    }
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                        channel.truncate(validSize);
+                        channel.force(true);
+                    }
+                }
+                segmentNumber = number;
+            }
+        }
+        
+        segment = openSegment(segmentNumber);
+        committer = new Thread(this::commitAll, "Ballot journal");
+        committer.setDaemon(true);
+        committer.start();
+        return recovery;
+    }
+    
+    /**
+     * Appends a ballot.
+     * @param preferenceIds The candidate IDs of the preferences.
+     * @param length The number of preferences to take from preferenceIds.
+     * @throws IOException If an earlier commit failed or the thread is interrupted while the buffer is full.
+     * @pre The journal has been recovered.
+     */
+    public void appendBallot(int[] preferenceIds, int length) throws IOException {
+        synchronized (lock) {
+            waitForRoom();
+            int start = beginRecord(BALLOTS, Short.BYTES * (length + 1));
+            putIds(preferenceIds, length);
+            endRecord(start);
+            ballotsSinceSnapshot += 1;
+        }
+    }
+    
+    /**
+     * Appends a batch of ballots as one record.
+     * @param batch The ballots.
+     * @throws IOException If an earlier commit failed or the thread is interrupted while the buffer is full.
+     * @pre The journal has been recovered.
+     * @pre batch is not collapsing.
+     */
+    public void appendBallots(BallotStore batch) throws IOException {
+        assert !batch.isCollapsing();
+        int size = 0;
+        for (int ballot = 0; ballot < batch.size(); ballot++) {
+            size += Short.BYTES * (batch.getLength(ballot) + 1);
+        }
+        synchronized (lock) {
+            waitForRoom();
+            int start = beginRecord(BALLOTS, size);
+            for (int ballot = 0; ballot < batch.size(); ballot++) {
+                int length = batch.getLength(ballot);
+                pending.putShort((short) length);
+                for (int rank = 0; rank < length; rank++) {
+                    pending.putShort((short) batch.getPreference(ballot, rank));
+                }
+            }
+            endRecord(start);
+            ballotsSinceSnapshot += batch.size();
+        }
+    }
+    
+    /**
+     * Appends the start of a count, which clears the eliminations of any earlier count.
+     * @throws IOException If an earlier commit failed or the thread is interrupted while the buffer is full.
+     * @pre The journal has been recovered.
+     */
+    public void appendStart() throws IOException {
+        synchronized (lock) {
+            waitForRoom();
+            endRecord(beginRecord(START, 0));
+        }
+    }
+    
+    /**
+     * Appends the candidates eliminated before a round of the count.
+     * @param eliminatedIds The indexes of the eliminated candidates.
+     * @param eliminatedCount The number of candidates at the start of eliminatedIds.
+     * @throws IOException If an earlier commit failed or the thread is interrupted while the buffer is full.
+     * @pre The journal has been recovered.
+     */
+    public void appendRound(int[] eliminatedIds, int eliminatedCount) throws IOException {
+        synchronized (lock) {
+            waitForRoom();
+            int start = beginRecord(ROUND, Short.BYTES * (eliminatedCount + 1));
+            putIds(eliminatedIds, eliminatedCount);
+            endRecord(start);
+        }
+    }
+    
+    /**
+     * Appends the reset of a count, after which no candidates are eliminated.
+     * @throws IOException If an earlier commit failed or the thread is interrupted while the buffer is full.
+     * @pre The journal has been recovered.
+     */
+    public void appendReset() throws IOException {
+        synchronized (lock) {
+            waitForRoom();
+            endRecord(beginRecord(RESET, 0));
+        }
+    }
+    
+    /**
+     * Waits until every record appended so far has been forced to disk.
+     * @throws IOException If a commit failed or the thread is interrupted while waiting.
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            waitForDurable();
+        }
+    }
+    
+    /**
+     * Determines if enough ballots have been journaled since the last snapshot for a new snapshot to be saved.
+     * @return True if a snapshot is due.
+     */
+    public boolean isSnapshotDue() {
+        synchronized (lock) {
+            return ballotsSinceSnapshot >= snapshotInterval;
+        }
+    }
+    
+    /**
+     * Saves a snapshot of the ballots and count, starting a new segment and deleting the ones before it. The count's
+     * counts are saved with its eliminations so that it can be recovered without counting it again, since ballots
+     * may have been added after it finished.
+     * @param ballots Every ballot that has been journaled.
+     * @param history The history of the count (empty if counting has not started).
+     * @throws IOException If the snapshot cannot be saved (later appends fail too).
+     * @pre The journal has been recovered.
+     * @pre Counting is not in progress.
+     * @post Recovery starts from the snapshot.
+     */
+    public void snapshot(BallotStore ballots, RoundHistory history) throws IOException {
+        try {
+            saveSnapshot(ballots, history);
+        } catch (IOException ex) {
+            synchronized (lock) {
+                if (failure == null) {
+                    failure = ex;
+                }
+                lock.notifyAll();
+            }
+            throw ex;
+        }
+    }
+    
+    /**
+     * Saves a snapshot of the ballots and count.
+     * @param ballots Every ballot that has been journaled.
+     * @param history The history of the count.
+     * @throws IOException If the snapshot cannot be saved.
+     */
+    private void saveSnapshot(BallotStore ballots, RoundHistory history) throws IOException {
+        // Starts a new segment once the records before the snapshot are durable.
+        int number;
+        synchronized (lock) {
+            waitForDurable();
+            segment.close();
+            number = segmentNumber + 1;
+            segment = openSegment(number);
+            segmentNumber = number;
+            ballotsSinceSnapshot = 0;
+        }
+        
+        // Saves the count and then the ballots, renaming the ballots into place last to complete the snapshot.
+        Path statePath = getPath(SNAPSHOT_PREFIX, number, STATE_SUFFIX);
+        Path stateTemp = Paths.get(statePath + TEMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(stateTemp))) {
+            out.writeInt(history.getRoundCount());
+            for (int round = 1; round <= history.getRoundCount(); round++) {
+                out.writeShort(history.getEliminatedCount(round));
+                for (int index = 0; index < history.getEliminatedCount(round); index++) {
+                    out.writeShort(history.getEliminatedId(round, index));
+                }
+                for (int id = 0; id < candidateCount; id++) {
+                    out.writeInt(history.getCount(round, id));
+                }
+            }
+        }
+        force(stateTemp);
+        Files.move(stateTemp, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Path snapshotPath = getPath(SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX);
+        Path snapshotTemp = Paths.get(snapshotPath + TEMP_SUFFIX);
+        BinaryBallotFile.save(ballots, candidateCount, snapshotTemp.toString());
+        force(snapshotTemp);
+        Files.move(snapshotTemp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        
+        // Deletes the segments and snapshots that the new snapshot replaces.
+        for (int older : findAll(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (older < number) {
+                Files.delete(getPath(SEGMENT_PREFIX, older, SEGMENT_SUFFIX));
+            }
+        }
+        for (int older : findAll(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (older < number) {
+                Files.delete(getPath(SNAPSHOT_PREFIX, older, SNAPSHOT_SUFFIX));
+                Files.deleteIfExists(getPath(SNAPSHOT_PREFIX, older, STATE_SUFFIX));
+            }
+        }
+    }
+    
+    /**
+     * Commits the remaining records and closes the segment.
+     * @throws IOException If the last commit failed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+        }
+        if (committer != null) {
+            try {
+                committer.join();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted while closing the journal.");
+            }
+            segment.close();
+        }
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+    
+    /**
+     * Writes and forces the buffered records until the journal is closed, swapping buffers so that records can be
+     * appended while the last ones are written.
+     */
+    private void commitAll() {
+        try {
+            while (true) {
+                long committedBytes;
+                synchronized (lock) {
+                    while (pending.position() == 0 && !closing) {
+                        lock.wait();
+                    }
+                    if (pending.position() == 0) {
+                        return;
+                    }
+                    ByteBuffer full = pending;
+                    pending = writing;
+                    writing = full;
+                    committedBytes = appendedBytes;
+                    lock.notifyAll();
+                }
+                
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    segment.write(writing);
+                }
+                segment.force(false);
+                writing.clear();
+                synchronized (lock) {
+                    durableBytes = committedBytes;
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException ex) {
+            synchronized (lock) {
+                failure = ex;
+                lock.notifyAll();
+            }
+        } catch (InterruptedException ex) {
+            synchronized (lock) {
+                failure = new InterruptedIOException("The journal was interrupted.");
+                lock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Waits while the buffer is full so that a slow disk holds back appending (the lock must be held).
+     * @throws IOException If a commit failed or the thread is interrupted while waiting.
+     */
+    private void waitForRoom() throws IOException {
+        try {
+            while (pending.position() > MAX_PENDING && failure == null) {
+                lock.wait();
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while waiting for the journal.");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    /**
+     * Waits until every appended record is durable (the lock must be held).
+     * @throws IOException If a commit failed or the thread is interrupted while waiting.
+     */
+    private void waitForDurable() throws IOException {
+        try {
+            while (durableBytes < appendedBytes && failure == null) {
+                lock.notifyAll();
+                lock.wait();
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted while waiting for the journal.");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    /**
+     * Begins a record in the buffer, leaving room for its checksum (the lock must be held).
+     * @param type The type of the record.
+     * @param payloadSize The number of bytes in the payload.
+     * @return The position of the record in the buffer.
+     */
+    private int beginRecord(byte type, int payloadSize) {
+        if (pending.remaining() < RECORD_HEADER_SIZE + payloadSize) {
+            int capacity = Math.max(pending.capacity() * 2, pending.position() + RECORD_HEADER_SIZE + payloadSize);
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        int start = pending.position();
+        pending.put(type);
+        pending.putInt(payloadSize);
+        pending.putInt(0);
+        return start;
+    }
+    
+    /**
+     * Ends a record by filling in the checksum of its payload and wakes the commit thread (the lock must be held).
+     * @param start The position of the record in the buffer.
+     */
+    private void endRecord(int start) {
+        checksum.reset();
+        checksum.update(pending.array(), start + RECORD_HEADER_SIZE, pending.position() - start - RECORD_HEADER_SIZE);
+        pending.putInt(start + 5, (int) checksum.getValue());
+        appendedBytes += pending.position() - start;
+        lock.notifyAll();
+    }
+    
+    /**
+     * Puts a count followed by candidate IDs in the buffer as shorts (the lock must be held).
+     * @param ids The candidate IDs.
+     * @param count The number of IDs to take from ids.
+     */
+    private void putIds(int[] ids, int count) {
+        pending.putShort((short) count);
+        for (int index = 0; index < count; index++) {
+            pending.putShort((short) ids[index]);
+        }
+    }
+    
+    /**
+     * Reads the records of a segment up to the first torn or corrupt record.
+     * @param path The path of the segment.
+     * @param recovery The recovery to add the records to.
+     * @return The number of bytes up to the end of the last valid record.
+     * @throws Exception If the file is not a segment or a ballot is invalid.
+     */
+    private long replaySegment(Path path, Recovery recovery) throws Exception {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (data.remaining() < Integer.BYTES) {
+            return 0;
+        } else if (data.getInt() != MAGIC) {
+            throw new Exception("The file is not a journal segment.");
+        }
+        int[] ids = new int[Math.max(candidateCount, 1)];
+        long[] selected = new long[(candidateCount + 63) / 64];
+        
+        while (data.remaining() >= RECORD_HEADER_SIZE) {
+            int start = data.position();
+            byte type = data.get();
+            int payloadSize = data.getInt();
+            int expectedChecksum = data.getInt();
+            if (payloadSize < 0 || payloadSize > data.remaining()) {
+                return start;
+            }
+            checksum.reset();
+            checksum.update(data.array(), data.position(), payloadSize);
+            if ((int) checksum.getValue() != expectedChecksum) {
+                return start;
+            }
+            
+            // Adds the record to the recovered records, appending ballots to the last record if it is ballots too.
+            int end = data.position() + payloadSize;
+            ArrayList<Record> records = recovery.records;
+            Record last = records.isEmpty() ? null : records.get(records.size() - 1);
+            if (type == BALLOTS) {
+                if (last == null || last.type != RecordType.BALLOTS) {
+                    last = new Record(RecordType.BALLOTS, new BallotStore(), null);
+                    records.add(last);
+                }
+                while (data.position() < end) {
+                    int length = readIds(data, ids);
+                    try {
+                        AVModel.validateVote(ids, length, candidateCount, selected);
+                    } catch (Exception ex) {
+                        throw new Exception("The journal has an invalid ballot: " + ex.getMessage());
+                    }
+                    last.ballots.add(ids, length);
+                }
+            } else if (type == START) {
+                records.add(new Record(RecordType.START, null, null));
+            } else if (type == ROUND) {
+                int count;
+                try {
+                    count = readIds(data, ids);
+                } catch (Exception ex) {
+                    throw new Exception("The journal has an invalid round: " + ex.getMessage());
+                }
+                records.add(new Record(RecordType.ROUND, null, Arrays.copyOf(ids, count)));
+            } else if (type == RESET) {
+                records.add(new Record(RecordType.RESET, null, null));
+            }
+            data.position(end);
+        }
+        return data.position();
+    }
+    
+    /**
+     * Reads a count followed by candidate IDs.
+     * @param data The buffer to read from.
+     * @param ids The array to put the IDs in.
+     * @return The number of IDs.
+     * @throws Exception If there are more IDs than candidates or an ID is not a candidate.
+     */
+    private int readIds(ByteBuffer data, int[] ids) throws Exception {
+        int count = data.getShort() & 0xFFFF;
+        if (count > candidateCount) {
+            throw new Exception("Too many preferences selected.");
+        }
+        for (int index = 0; index < count; index++) {
+            ids[index] = data.getShort() & 0xFFFF;
+            if (ids[index] >= candidateCount) {
+                throw new Exception("Candidate could not be found.");
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Reads the eliminations and counts of the count saved with a snapshot.
+     * @param path The path of the state file.
+     * @param recovery The recovery to put the count in (which is left without one if counting had not started).
+     * @throws IOException If the file cannot be read.
+     * @throws Exception If the count is corrupt, such as when a candidate is eliminated twice or cannot be found.
+     */
+    private void readState(Path path, Recovery recovery) throws IOException, Exception {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            int roundCount = in.readInt();
+            if (roundCount < 0) {
+                throw new Exception("The journal's snapshot is corrupt: it has " + roundCount + " rounds.");
+            } else if (roundCount == 0) {
+                return;
+            }
+            recovery.rounds = new ArrayList<>();
+            recovery.roundCounts = new ArrayList<>();
+            boolean[] eliminated = new boolean[candidateCount];
+            for (int round = 0; round < roundCount; round++) {
+                int[] ids = new int[in.readShort() & 0xFFFF];
+                if (ids.length > (round == 0 ? 0 : candidateCount)) {
+                    throw new Exception("The journal's snapshot is corrupt: round " + (round + 1) + " eliminates too many candidates.");
+                }
+                for (int index = 0; index < ids.length; index++) {
+                    ids[index] = in.readShort() & 0xFFFF;
+                    if (ids[index] >= candidateCount || eliminated[ids[index]]) {
+                        throw new Exception("The journal's snapshot is corrupt: candidate " + ids[index] + " cannot be eliminated.");
+                    }
+                    eliminated[ids[index]] = true;
+                }
+                int[] counts = new int[candidateCount];
+                for (int id = 0; id < candidateCount; id++) {
+                    counts[id] = in.readInt();
+                    if (counts[id] < 0) {
+                        throw new Exception("The journal's snapshot is corrupt: a count is negative.");
+                    }
+                }
+                recovery.rounds.add(ids);
+                recovery.roundCounts.add(counts);
+            }
+        }
+    }
+    
+    /**
+     * Opens a segment for appending, writing its header if it is new.
+     * @param number The number of the segment.
+     * @return The channel positioned at the end of the segment.
+     * @throws IOException If the segment cannot be opened.
+     */
+    private FileChannel openSegment(int number) throws IOException {
+        FileChannel channel = FileChannel.open(getPath(SEGMENT_PREFIX, number, SEGMENT_SUFFIX), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() < Integer.BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+            header.putInt(MAGIC);
+            header.flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        channel.position(channel.size());
+        return channel;
+    }
+    
+    /**
+     * Forces a file to disk.
+     * @param path The path of the file.
+     * @throws IOException If the file cannot be forced.
+     */
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+    
+    /**
+     * Gets the path of a numbered file in the folder.
+     * @param prefix The prefix of the file name.
+     * @param number The number.
+     * @param suffix The suffix of the file name.
+     * @return The path.
+     */
+    private Path getPath(String prefix, int number, String suffix) {
+        return folder.resolve(String.format("%s%08d%s", prefix, number, suffix));
+    }
+    
+    /**
+     * Finds the numbers of the files in the folder with a prefix and suffix.
+     * @param prefix The prefix of the file names.
+     * @param suffix The suffix of the file names.
+     * @return The numbers in ascending order.
+     * @throws IOException If the folder cannot be read.
+     */
+    private ArrayList<Integer> findAll(String prefix, String suffix) throws IOException {
+        ArrayList<Integer> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException ex) {
+                    // Ignores files that only look like journal files.
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+    
+    /**
+     * Finds the highest number of the files in the folder with a prefix and suffix.
+     * @param prefix The prefix of the file names.
+     * @param suffix The suffix of the file names.
+     * @return The number (-1 if there are none).
+     * @throws IOException If the folder cannot be read.
+     */
+    private int findLatest(String prefix, String suffix) throws IOException {
+        ArrayList<Integer> numbers = findAll(prefix, suffix);
+        return numbers.isEmpty() ? -1 : numbers.get(numbers.size() - 1);
+    }
+    
+    /**
+     * The types of the records in a segment.
+     */
+    public enum RecordType {
+        BALLOTS, START, ROUND, RESET
+    }
+    
+    /**
+     * A record read from a segment: a batch of ballots, or the start, a round or the reset of a count.
+     */
+    public static class Record {
+        private final RecordType type;
+        private final BallotStore ballots;
+        private final int[] eliminatedIds;
+        
+        private Record(RecordType type, BallotStore ballots, int[] eliminatedIds) {
+            this.type = type;
+            this.ballots = ballots;
+            this.eliminatedIds = eliminatedIds;
+        }
+        
+        /**
+         * Gets the type of the record.
+         * @return The type.
+         */
+        public RecordType getType() {
+            return type;
+        }
+        
+        /**
+         * Gets the ballots of a ballots record, which holds every ballot journaled between the records around it.
+         * @return The ballots (null unless the type is BALLOTS).
+         */
+        public BallotStore getBallots() {
+            return ballots;
+        }
+        
+        /**
+         * Gets the candidates eliminated before a round.
+         * @return The indexes of the eliminated candidates (null unless the type is ROUND).
+         */
+        public int[] getEliminatedIds() {
+            return eliminatedIds;
+        }
+    }
+    
+    /**
+     * The snapshot and records recovered from a journal, which must be applied in order: the snapshot's ballots,
+     * then its count, then each record.
+     */
+    public static class Recovery {
+        private BallotStore ballots;
+        private ArrayList<int[]> rounds = null;
+        private ArrayList<int[]> roundCounts = null;
+        private final ArrayList<Record> records = new ArrayList<>();
+        
+        private Recovery() {
+        }
+        
+        /**
+         * Gets the ballots of the snapshot.
+         * @return The ballots (collapsing if the snapshot was saved from a collapsing store).
+         */
+        public BallotStore getBallots() {
+            return ballots;
+        }
+        
+        /**
+         * Gets the candidates eliminated before each round of the snapshot's count, which had finished.
+         * @return The indexes of the eliminated candidates of each round, starting with the first round which has
+         * none (null if counting had not started).
+         */
+        public ArrayList<int[]> getRounds() {
+            return rounds;
+        }
+        
+        /**
+         * Gets the counts of each round of the snapshot's count.
+         * @return The count of each candidate in each round (null if counting had not started).
+         */
+        public ArrayList<int[]> getRoundCounts() {
+            return roundCounts;
+        }
+        
+        /**
+         * Gets the records of the segments written after the snapshot.
+         * @return The records in the order they were appended.
+         */
+        public ArrayList<Record> getRecords() {
+            return records;
+        }
+    }
+}
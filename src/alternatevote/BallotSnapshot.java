@@ -0,0 +1,50 @@
+package alternatevote;
+
+/**
+ * A snapshot of the ballots and their current choices, taken on the thread that changes the model so that a view can
+ * read it on another thread while the model goes on changing. Choices are found by scanning each ballot's preferences
+ * for the first candidate that had not been eliminated, so the counter's cursors are never read.
+ * @author ryansmith
+ */
+public class BallotSnapshot {
+    private final BallotStore ballots;
+    private final boolean[] eliminated;
+    
+    /**
+     * Creates a snapshot.
+     * @param ballots A read-only snapshot of the ballots.
+     * @param eliminated Whether each candidate had been eliminated, which the snapshot keeps.
+     * @pre ballots and eliminated are not null.
+     */
+    BallotSnapshot(BallotStore ballots, boolean[] eliminated) {
+        assert ballots != null && eliminated != null;
+        this.ballots = ballots;
+        this.eliminated = eliminated;
+    }
+    
+    /**
+     * Gets the ballots.
+     * @return The read-only ballots.
+     */
+    public BallotStore getBallots() {
+        return ballots;
+    }
+    
+    /**
+     * Gets the candidate index of a ballot's choice when the snapshot was taken.
+     * @param index The index of the ballot.
+     * @return The candidate index of the highest continuing preference (-1 if there are none).
+     * @pre index is between 0 and the number of ballots - 1.
+     */
+    public int getChoiceId(int index) {
+        assert index >= 0 && index < ballots.size();
+        int length = ballots.getLength(index);
+        for (int rank = 0; rank < length; rank++) {
+            int id = ballots.getPreference(index, rank);
+            if (!eliminated[id]) {
+                return id;
+            }
+        }
+        return -1;
+    }
+}
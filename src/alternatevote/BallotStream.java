@@ -0,0 +1,500 @@
+package alternatevote;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage that streams ballots into a model as they arrive, such as from scanners through the night. Ballots are
+ * lines parsed by the same code as a CSV ballot file, read from connections to a local socket or from CSV files that
+ * are moved into a watched folder (files should be written elsewhere and then moved in, so they are never read half
+ * written, and are renamed with a ".done" suffix once every ballot in them has been added to the model).
+ *
+ * Each line is validated on the thread that reads it and put on a bounded queue. A batching thread takes the waiting
+ * ballots off the queue and adds them to the model as one batch on the model's executor, which updates the
+ * first-preference tallies without a recount. While the model is busy or counting has started the batch waits, the
+ * queue fills up and the readers block, which in turn holds back the socket connections. A batch that the model
+ * fails to add, such as when it cannot be journaled, is kept and tried again, so a ballot that has been queued is
+ * never dropped.
+ * @author ryansmith
+ */
+public class BallotStream implements Closeable {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int BATCH_SIZE = 1 << 12;
+    private static final long RETRY_MILLIS = 100;
+    private static final String CSV_SUFFIX = ".csv";
+    private static final String DONE_SUFFIX = ".done";
+    private final AVModel model;
+    private final Executor executor;
+    private final int candidateCount;
+    private final BlockingQueue<Ballot> queue;
+    private final ArrayList<Closeable> resources = new ArrayList<>();
+    private final ArrayList<Thread> threads = new ArrayList<>();
+    private final HashSet<Path> unfinishedFiles = new HashSet<>();
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile String lastError = null;
+    private volatile boolean closed = false;
+    
+    /**
+     * Creates a stream that adds batches to a model on its batching thread.
+     * @param model The model to add the ballots to.
+     * @pre model is not null.
+     */
+    public BallotStream(AVModel model) {
+        this(model, Runnable::run, DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Creates a stream.
+     * @param model The model to add the ballots to.
+     * @param executor The executor that runs the tasks which change the model.
+     * @param capacity The number of ballots that can wait for the model before readers are blocked.
+     * @pre model is not null.
+     * @pre executor is not null.
+     * @pre capacity is at least 1.
+     */
+    public BallotStream(AVModel model, Executor executor, int capacity) {
+        assert model != null;
+        assert executor != null;
+        assert capacity >= 1;
+        this.model = model;
+        this.executor = executor;
+        candidateCount = model.getCandidates().size();
+        queue = new ArrayBlockingQueue<>(capacity);
+        startThread("Ballot batches", this::addBatches);
+    }
+    
+    /**
+     * Listens for connections on a local socket, reading a ballot from each line that is sent.
+     * @param port The port to listen on (0 for any free port).
+     * @return The port that is being listened on.
+     * @throws IOException If the socket cannot be opened.
+     * @pre The stream is not closed.
+     */
+    public int listen(int port) throws IOException {
+        assert !closed;
+        ServerSocket server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        addResource(server);
+        startThread("Ballot socket " + server.getLocalPort(), () -> {
+            try {
+                while (!closed) {
+                    Socket socket = server.accept();
+                    addResource(socket);
+                    startThread("Ballot connection " + socket.getRemoteSocketAddress(), () -> {
+                        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))) {
+                            readAll(reader, socket.getRemoteSocketAddress().toString(), new Source(null));
+                        } catch (IOException ex) {
+                            reportError(ex.getMessage());
+                        } catch (InterruptedException ex) {
+                            // Only an interrupt from outside the stream stops the thread while it waits for the queue.
+                        } finally {
+                            removeResource(socket);
+                        }
+                    });
+                }
+            } catch (IOException ex) {
+                // Closing the stream closes the server socket.
+            }
+        });
+        return server.getLocalPort();
+    }
+    
+    /**
+     * Watches a folder for CSV files, reading the ballots in each file that is already there or moved in.
+     * @param directory The path of the folder.
+     * @throws IOException If the folder cannot be watched.
+     * @pre The stream is not closed.
+     */
+    public void watch(String directory) throws IOException {
+        assert !closed;
+        Path folder = Paths.get(directory);
+        WatchService watcher = folder.getFileSystem().newWatchService();
+        addResource(watcher);
+        folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        startThread("Ballot folder " + folder, () -> {
+            try {
+                readFolder(folder);
+                while (!closed) {
+                    WatchKey key = watcher.take();
+                    boolean overflowed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflowed = true;
+                        } else {
+                            readFile(folder.resolve((Path) event.context()));
+                        }
+                    }
+                    
+                    // Looks at every file when events were lost.
+                    if (overflowed) {
+                        readFolder(folder);
+                    }
+                    key.reset();
+                }
+            } catch (ClosedWatchServiceException | InterruptedException ex) {
+                // Closing the stream closes the watch service.
+            } catch (IOException ex) {
+                reportError(ex.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Gets the number of ballots that have been added to the model.
+     * @return The number of ballots.
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+    
+    /**
+     * Gets the number of ballots that were invalid or could not be added to the model.
+     * @return The number of ballots.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+    
+    /**
+     * Gets the number of ballots waiting to be added to the model.
+     * @return The number of ballots.
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+    
+    /**
+     * Gets the last problem with a ballot, connection or file.
+     * @return The error message (null if there has not been a problem).
+     */
+    public String getLastError() {
+        return lastError;
+    }
+    
+    /**
+     * Stops accepting connections and files. The connections are closed, but a file that is being read is read to the
+     * end, and the batching thread goes on adding the ballots already read (waiting while counting) before it stops.
+     * @post The sockets and folders are closed and the threads stop once every queued ballot has been added.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (resources) {
+            for (Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException ex) {
+                    // Keeps closing the other resources.
+                }
+            }
+        }
+    }
+    
+    /**
+     * Takes batches of ballots off the queue and adds them to the model until the stream is closed and every ballot
+     * that was read has been added.
+     */
+    private void addBatches() {
+        ArrayList<Ballot> pending = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (!closed || !queue.isEmpty() || isReading()) {
+                Ballot first = queue.poll(RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                
+                // Packs the ballots that are waiting into a batch.
+                pending.add(first);
+                queue.drainTo(pending, BATCH_SIZE - 1);
+                BallotStore batch = new BallotStore();
+                for (Ballot ballot : pending) {
+                    batch.add(ballot.preferenceIds, ballot.preferenceIds.length);
+                }
+                
+                // Holds the batch, and so the queue, until counting has finished or the model can add it.
+                while (!addBatch(batch)) {
+                    Thread.sleep(RETRY_MILLIS);
+                }
+                
+                // Finishes the files whose last ballots were in the batch before counting the ballots as accepted.
+                for (Ballot ballot : pending) {
+                    ballot.source.added();
+                }
+                acceptedCount.addAndGet(batch.size());
+                pending.clear();
+            }
+        } catch (InterruptedException ex) {
+            // Interrupting the thread stops it without adding the queued ballots.
+        }
+    }
+    
+    /**
+     * Adds a batch to the model on the model's executor, waiting until it has been run.
+     * @param batch The ballots to add.
+     * @return False if counting has started or the model failed to add the batch, so it must be tried again later.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    private boolean addBatch(BallotStore batch) throws InterruptedException {
+        FutureTask<Boolean> task = new FutureTask<>(() -> {
+            if (model.hasStarted()) {
+                return false;
+            }
+            model.addBallots(batch);
+            return true;
+        });
+        executor.execute(task);
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            reportError(ex.getCause().getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Determines if a connection or file is still being read by another thread.
+     * @return True if a reading thread is running.
+     */
+    private boolean isReading() {
+        synchronized (resources) {
+            for (Thread thread : threads) {
+                if (thread != Thread.currentThread() && thread.isAlive()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Reads the CSV files that are already in a folder.
+     * @param folder The folder.
+     * @throws IOException If the folder cannot be read.
+     * @throws InterruptedException If the thread is interrupted while waiting for the queue.
+     */
+    private void readFolder(Path folder) throws IOException, InterruptedException {
+        ArrayList<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + CSV_SUFFIX)) {
+            files.forEach(paths::add);
+        }
+        paths.sort(null);
+        for (Path path : paths) {
+            if (closed) {
+                return;
+            }
+            readFile(path);
+        }
+    }
+    
+    /**
+     * Reads the ballots in a CSV file, which is renamed once they have all been added to the model so that it is only
+     * read once. A file that cannot be read to the end is left in place.
+     * @param path The path of the file.
+     * @throws InterruptedException If the thread is interrupted while waiting for the queue.
+     */
+    private void readFile(Path path) throws InterruptedException {
+        if (!path.toString().endsWith(CSV_SUFFIX) || !Files.isRegularFile(path)) {
+            return;
+        }
+        
+        // Skips a file that has been read but not renamed yet, which is seen again when its event follows a scan.
+        synchronized (unfinishedFiles) {
+            if (!unfinishedFiles.add(path)) {
+                return;
+            }
+        }
+        Source source = new Source(path);
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+            readAll(reader, path.getFileName().toString(), source);
+        } catch (IOException ex) {
+            reportError(path.getFileName() + ": " + ex.getMessage());
+            return;
+        }
+        source.finish();
+    }
+    
+    /**
+     * Reads a ballot from each line of a reader, rejecting invalid lines and skipping blank ones.
+     * @param reader The reader.
+     * @param name The name of the connection or file for error messages.
+     * @param source The source that the ballots are queued from.
+     * @throws IOException If the reader fails.
+     * @throws InterruptedException If the thread is interrupted while waiting for the queue.
+     */
+    private void readAll(BufferedReader reader, String name, Source source) throws IOException, InterruptedException {
+        CsvBallotLoader parser = new CsvBallotLoader(candidateCount);
+        int line = 1;
+        for (String text = reader.readLine(); text != null; text = reader.readLine(), line++) {
+            if (text.isEmpty()) {
+                continue;
+            }
+            int[] preferenceIds;
+            try {
+                preferenceIds = parser.parseLine(text, line);
+            } catch (Exception ex) {
+                rejectedCount.incrementAndGet();
+                reportError(name + ": " + ex.getMessage());
+                continue;
+            }
+            source.queue();
+            queue.put(new Ballot(preferenceIds, source));
+        }
+    }
+    
+    /**
+     * Records a problem with a ballot, connection or file.
+     * @param message The error message.
+     */
+    private void reportError(String message) {
+        lastError = message;
+    }
+    
+    /**
+     * Remembers a socket or watch service so that it is closed with the stream.
+     * @param resource The resource.
+     * @throws IOException If the stream has already been closed (the resource is closed).
+     */
+    private void addResource(Closeable resource) throws IOException {
+        synchronized (resources) {
+            if (closed) {
+                resource.close();
+                throw new IOException("The ballot stream is closed.");
+            }
+            resources.add(resource);
+        }
+    }
+    
+    /**
+     * Forgets a socket that has been closed and the thread that read it once the connection has ended.
+     * @param resource The resource.
+     */
+    private void removeResource(Closeable resource) {
+        synchronized (resources) {
+            resources.remove(resource);
+            threads.remove(Thread.currentThread());
+        }
+    }
+    
+    /**
+     * Starts a daemon thread for the stream. Closing the stream does not interrupt it: the thread stops by itself once
+     * its socket or watch service is closed, or once every queued ballot has been added.
+     * @param name The name of the thread.
+     * @param task The task to run on the thread.
+     */
+    private void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        synchronized (resources) {
+            threads.add(thread);
+        }
+        thread.start();
+    }
+    
+    /**
+     * A validated ballot waiting on the queue.
+     */
+    private static class Ballot {
+        private final int[] preferenceIds;
+        private final Source source;
+        
+        private Ballot(int[] preferenceIds, Source source) {
+            this.preferenceIds = preferenceIds;
+            this.source = source;
+        }
+    }
+    
+    /**
+     * A connection or file that ballots are queued from, which tracks the ballots that have not been added yet so
+     * that a file is only renamed once they all have.
+     */
+    private class Source {
+        private final Path file;
+        private int waitingCount = 0;
+        private boolean finished = false;
+        
+        /**
+         * Creates a source.
+         * @param file The file (null for a connection, which is not renamed).
+         */
+        private Source(Path file) {
+            this.file = file;
+        }
+        
+        /**
+         * Counts a ballot that is about to be queued.
+         */
+        private synchronized void queue() {
+            waitingCount += 1;
+        }
+        
+        /**
+         * Counts a ballot that has been added to the model, renaming the file after its last ballot.
+         */
+        private void added() {
+            boolean done;
+            synchronized (this) {
+                waitingCount -= 1;
+                done = finished && waitingCount == 0;
+            }
+            if (done) {
+                rename();
+            }
+        }
+        
+        /**
+         * Records that the whole file has been read, renaming it if its ballots have all been added.
+         */
+        private void finish() {
+            boolean done;
+            synchronized (this) {
+                finished = true;
+                done = waitingCount == 0;
+            }
+            if (done) {
+                rename();
+            }
+        }
+        
+        /**
+         * Renames the file so that it is not read again.
+         */
+        private void rename() {
+            if (file == null) {
+                return;
+            }
+            try {
+                Files.move(file, file.resolveSibling(file.getFileName() + DONE_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                reportError(file.getFileName() + ": " + ex.getMessage());
+            }
+            synchronized (unfinishedFiles) {
+                unfinishedFiles.remove(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package alternatevote;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary file of ballots that can be saved from and loaded into a ballot store in bulk.
+ *
+ * The file starts with a 32 byte header: the magic number "AVB1", the format version, flags, the
+ * number of candidates, the number of ballots, the number of preferences, the fixed ballot length (0 if the
+ * ballots have different lengths) and a CRC32 checksum of everything after the header. The header is followed by
+ * the length of each ballot (left out when the ballots have a fixed length), the packed candidate indexes of all
+ * of the preferences and the weight of each ballot (only for collapsing stores). Lengths and indexes take a byte
+ * each, or a short each when the WIDE flag is set.
+ * @author ryansmith
+ */
+public class BinaryBallotFile {
+    private static final int MAGIC = 0x41564231;
+    private static final short VERSION = 1;
+    private static final short WIDE = 1;
+    private static final short WEIGHTED = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 1 << 20;
+    
+    /**
+     * Saves the ballots in a store to a file.
+     * @param ballots The ballots to save.
+     * @param candidateCount The number of candidates.
+     * @param absolutePath The absolute path of the file to save to.
+     * @throws IOException
+     * @pre ballots is not null.
+     * @post The file holds the ballots.
+     */
+    public static void save(BallotStore ballots, int candidateCount, String absolutePath) throws IOException {
+        assert ballots != null;
+        int size = ballots.size();
+        int[] offsets = ballots.getOffsets();
+        boolean wide = ballots.getWidePreferences() != null || candidateCount > 255;
+        int fixedLength = getFixedLength(ballots);
+        CRC32 checksum = new CRC32();
+        
+        try (RandomAccessFile file = new RandomAccessFile(absolutePath, "rw");
+             FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+            channel.position(HEADER_SIZE);
+            Section section = new Section(channel, checksum);
+            
+            // Writes the length of each ballot unless they all have the same length.
+            if (fixedLength == 0) {
+                for (int ballot = 0; ballot < size; ballot++) {
+                    section.putIndex(offsets[ballot + 1] - offsets[ballot], wide);
+                }
+            }
+            
+            // Writes the preferences, copying them straight from the store when they have the same width.
+            int preferenceCount = offsets[size];
+            if (!wide) {
+                section.put(ballots.getNarrowPreferences(), preferenceCount);
+            } else {
+                for (int position = 0; position < preferenceCount; position++) {
+                    int id = ballots.getWidePreferences() == null
+                        ? ballots.getNarrowPreferences()[position] & 0xFF
+                        : ballots.getWidePreferences()[position] & 0xFFFF;
+                    section.putIndex(id, true);
+                }
+            }
+            
+            // Writes the weights of a collapsing store.
+            if (ballots.isCollapsing()) {
+                for (int ballot = 0; ballot < size; ballot++) {
+                    section.putInt(ballots.getWeight(ballot));
+                }
+            }
+            section.flush();
+            
+            // Writes the header now that the checksum is known.
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.putShort((short) ((wide ? WIDE : 0) | (ballots.isCollapsing() ? WEIGHTED : 0)));
+            header.putInt(candidateCount);
+            header.putInt(size);
+            header.putInt(preferenceCount);
+            header.putInt(fixedLength);
+            header.putLong(checksum.getValue());
+            header.flip();
+            channel.write(header, 0);
+        }
+    }
+    
+    /**
+     * Loads the ballots in a file into a new ballot store.
+     * @param absolutePath The absolute path of the file to load from.
+     * @param candidateCount The number of candidates that the ballots must be for.
+     * @return The store of the ballots (collapsing if the file was saved from a collapsing store).
+     * @throws FileNotFoundException
+     * @throws Exception If the file is not a valid ballot file for the candidates or one of its ballots is not a
+     * valid vote.
+     */
+    public static BallotStore load(String absolutePath, int candidateCount) throws FileNotFoundException, Exception {
+        try (RandomAccessFile file = new RandomAccessFile(absolutePath, "r");
+             FileChannel channel = file.getChannel()) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new Exception("The ballot file is too short.");
+            }
+            
+            // Reads and checks the header.
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getShort() != VERSION) {
+                throw new Exception("The file is not a ballot file.");
+            }
+            short flags = header.getShort();
+            boolean wide = (flags & WIDE) != 0;
+            boolean weighted = (flags & WEIGHTED) != 0;
+            if (header.getInt() != candidateCount) {
+                throw new Exception("The ballot file is for a different number of candidates.");
+            }
+            int size = header.getInt();
+            int preferenceCount = header.getInt();
+            int fixedLength = header.getInt();
+            long expectedChecksum = header.getLong();
+            int indexBytes = wide ? Short.BYTES : 1;
+            long lengthsSize = fixedLength == 0 ? (long) size * indexBytes : 0;
+            long preferencesSize = (long) preferenceCount * indexBytes;
+            long weightsSize = weighted ? (long) size * Integer.BYTES : 0;
+            if (size < 0 || preferenceCount < 0 || fileSize != HEADER_SIZE + lengthsSize + preferencesSize + weightsSize) {
+                throw new Exception("The ballot file is the wrong size.");
+            }
+            
+            // Maps the sections and checks them against the checksum.
+            long position = HEADER_SIZE;
+            MappedByteBuffer lengths = channel.map(FileChannel.MapMode.READ_ONLY, position, lengthsSize);
+            position += lengthsSize;
+            MappedByteBuffer preferences = channel.map(FileChannel.MapMode.READ_ONLY, position, preferencesSize);
+            position += preferencesSize;
+            MappedByteBuffer weights = channel.map(FileChannel.MapMode.READ_ONLY, position, weightsSize);
+            CRC32 checksum = new CRC32();
+            checksum.update(lengths.duplicate());
+            checksum.update(preferences.duplicate());
+            checksum.update(weights.duplicate());
+            if (checksum.getValue() != expectedChecksum) {
+                throw new Exception("The ballot file is corrupt.");
+            }
+            
+            // Converts the lengths to offsets.
+            int[] offsets = new int[size + 1];
+            for (int ballot = 0; ballot < size; ballot++) {
+                int length = fixedLength != 0 ? fixedLength : wide ? lengths.getShort() & 0xFFFF : lengths.get() & 0xFF;
+                if (length < 1 || length > candidateCount) {
+                    throw new Exception("Ballot " + (ballot + 1) + " has an invalid number of preferences.");
+                }
+                offsets[ballot + 1] = offsets[ballot] + length;
+            }
+            if (offsets[size] != preferenceCount) {
+                throw new Exception("The ballot file is the wrong size.");
+            }
+            
+            // Reads the preferences in bulk.
+            byte[] narrowPreferences = null;
+            short[] widePreferences = null;
+            if (wide) {
+                widePreferences = new short[preferenceCount];
+                preferences.asShortBuffer().get(widePreferences);
+            } else {
+                narrowPreferences = new byte[preferenceCount];
+                preferences.get(narrowPreferences);
+            }
+            
+            // Validates each ballot as a vote, so that a file cannot hold ballots that addVote would reject.
+            int[] ids = new int[Math.max(candidateCount, 1)];
+            long[] selected = new long[(candidateCount + 63) / 64];
+            for (int ballot = 0; ballot < size; ballot++) {
+                int length = offsets[ballot + 1] - offsets[ballot];
+                for (int rank = 0; rank < length; rank++) {
+                    int offset = offsets[ballot] + rank;
+                    ids[rank] = wide ? widePreferences[offset] & 0xFFFF : narrowPreferences[offset] & 0xFF;
+                }
+                try {
+                    AVModel.validateVote(ids, length, candidateCount, selected);
+                } catch (Exception ex) {
+                    throw new Exception("Ballot " + (ballot + 1) + ": " + ex.getMessage());
+                }
+            }
+            
+            // Reads the weights of a collapsing store in bulk and checks that they are positive and fit the total.
+            int[] weightArray = null;
+            if (weighted) {
+                weightArray = new int[size];
+                weights.asIntBuffer().get(weightArray);
+                long totalWeight = 0;
+                for (int ballot = 0; ballot < size; ballot++) {
+                    if (weightArray[ballot] < 1) {
+                        throw new Exception("Ballot " + (ballot + 1) + " has an invalid weight.");
+                    }
+                    totalWeight += weightArray[ballot];
+                }
+                if (totalWeight > Integer.MAX_VALUE) {
+                    throw new Exception("The ballot file has too many votes.");
+                }
+            }
+            
+            return new BallotStore(narrowPreferences, widePreferences, offsets, weightArray, size);
+        }
+    }
+    
+    /**
+     * Gets the length shared by all of the ballots in a store.
+     * @param ballots The ballots.
+     * @return The fixed length (0 if the ballots have different lengths or there are none).
+     */
+    private static int getFixedLength(BallotStore ballots) {
+        if (ballots.size() == 0) {
+            return 0;
+        }
+        int length = ballots.getLength(0);
+        for (int ballot = 1; ballot < ballots.size(); ballot++) {
+            if (ballots.getLength(ballot) != length) {
+                return 0;
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * A buffered writer for the sections after the header that keeps the checksum up to date.
+     */
+    private static class Section {
+        private final FileChannel channel;
+        private final CRC32 checksum;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        
+        private Section(FileChannel channel, CRC32 checksum) {
+            this.channel = channel;
+            this.checksum = checksum;
+        }
+        
+        /**
+         * Writes a length or candidate index as a byte or a short.
+         * @param value The length or index.
+         * @param wide True to write a short.
+         * @throws IOException
+         */
+        private void putIndex(int value, boolean wide) throws IOException {
+            ensureRemaining(Short.BYTES);
+            if (wide) {
+                buffer.putShort((short) value);
+            } else {
+                buffer.put((byte) value);
+            }
+        }
+        
+        /**
+         * Writes an int.
+         * @param value The int.
+         * @throws IOException
+         */
+        private void putInt(int value) throws IOException {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+        }
+        
+        /**
+         * Writes the start of a byte array.
+         * @param bytes The array.
+         * @param length The number of bytes to write.
+         * @throws IOException
+         */
+        private void put(byte[] bytes, int length) throws IOException {
+            for (int offset = 0; offset < length; ) {
+                ensureRemaining(1);
+                int count = Math.min(buffer.remaining(), length - offset);
+                buffer.put(bytes, offset, count);
+                offset += count;
+            }
+        }
+        
+        /**
+         * Writes the buffer to the file if it does not have room for more bytes.
+         * @param bytes The number of bytes that need to fit.
+         * @throws IOException
+         */
+        private void ensureRemaining(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+        
+        /**
+         * Writes the buffer to the file.
+         * @throws IOException
+         */
+        private void flush() throws IOException {
+            buffer.flip();
+            checksum.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -1,18 +1,33 @@
 package alternatevote;
 
+import java.util.ArrayList;
+
 /**
- * A class for representing and manipulating a candidate.
+ * A class for representing and manipulating a candidate. The candidate's state is held in a candidate registry.
  * @author ryansmith
  */
 public class Candidate {
-    private final String name;
-    private int count;
-    private boolean eliminated;
+    private final CandidateRegistry registry;
+    private final int id;
     
     public Candidate(String name) {
-        this.name = name;
-        resetCount();
-        resetElimination();
+        ArrayList<String> names = new ArrayList<>();
+        names.add(name);
+        registry = new CandidateRegistry(names);
+        id = 0;
+    }
+    
+    Candidate(CandidateRegistry registry, int id) {
+        this.registry = registry;
+        this.id = id;
+    }
+    
+    /**
+     * Gets the ID of the candidate in its registry.
+     * @return The ID.
+     */
+    public int getId() {
+        return id;
     }
     
     /**
@@ -20,7 +35,7 @@ public class Candidate {
      * @post Candidate is not eliminated.
      */
     public void resetElimination() {
-        eliminated = false;
+        registry.resetElimination(id);
     }
 
     /**
@@ -28,7 +43,7 @@ public class Candidate {
      * @return The name.
      */
     public String getName() {
-        return name;
+        return registry.getName(id);
     }
 
     /**
@@ -36,7 +51,7 @@ public class Candidate {
      * @return The count.
      */
     public int getCount() {
-        return count;
+        return registry.getCount(id);
     }
     
     /**
@@ -44,7 +59,17 @@ public class Candidate {
      * @post Vote count for the candidate has been incremented by 1.
      */
     public void incrementCount() {
-        count += 1;
+        registry.setCount(id, registry.getCount(id) + 1);
+    }
+    
+    /**
+     * Sets the count.
+     * @param count The vote count.
+     * @pre count is not negative.
+     * @post Vote count is count.
+     */
+    public void setCount(int count) {
+        registry.setCount(id, count);
     }
     
     /**
@@ -52,7 +77,7 @@ public class Candidate {
      * @post Vote count is 0.
      */
     public void resetCount() {
-        count = 0;
+        registry.setCount(id, 0);
     }
 
     /**
@@ -61,8 +86,7 @@ public class Candidate {
      * @post Candidate is eliminated.
      */
     public void eliminate() {
-        assert eliminated == false;
-        eliminated = true;
+        registry.eliminate(id);
     }
     
     /**
@@ -70,6 +94,6 @@ public class Candidate {
      * @return True if the candidate was eliminated.
      */
     public boolean isEliminated() {
-        return eliminated;
+        return registry.isEliminated(id);
     }
 }
@@ -0,0 +1,179 @@
+package alternatevote;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * A registry of the candidates in an election. Candidates are identified by dense int IDs, and their names, counts
+ * and elimination state are kept in primitive arrays so that elections with thousands of candidates can be counted
+ * without walking candidate objects. Candidate objects are views of an entry in the registry.
+ * @author ryansmith
+ */
+public class CandidateRegistry {
+    public static final int MAX_CANDIDATES = 65535;
+    private final String[] names;
+    private final int[] counts;
+    private final boolean[] eliminated;
+    
+    /**
+     * Creates a registry of candidates.
+     * @param candidateNames The names of the candidates in ID order.
+     * @throws IllegalArgumentException If there are more than MAX_CANDIDATES candidates, since ballots, journals and
+     * ballot files store candidate indexes and ballot lengths in 16 bits.
+     * @pre candidateNames is not null and has no duplicate names.
+     */
+    public CandidateRegistry(ArrayList<String> candidateNames) {
+        assert candidateNames != null;
+        assert new HashSet<>(candidateNames).size() == candidateNames.size();
+        if (candidateNames.size() > MAX_CANDIDATES) {
+            throw new IllegalArgumentException("There cannot be more than " + MAX_CANDIDATES + " candidates.");
+        }
+        names = candidateNames.toArray(new String[candidateNames.size()]);
+        counts = new int[names.length];
+        eliminated = new boolean[names.length];
+    }
+    
+    /**
+     * Loads a registry from a file with the name of one candidate on each line, in ID order.
+     * @param absolutePath The absolute path of the file.
+     * @return The registry.
+     * @throws FileNotFoundException
+     * @throws Exception If a name is blank or repeated, or there are more than MAX_CANDIDATES names (the message
+     * includes the line number).
+     */
+    public static CandidateRegistry load(String absolutePath) throws FileNotFoundException, Exception {
+        ArrayList<String> candidateNames = new ArrayList<>();
+        HashSet<String> seen = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(absolutePath))) {
+            int line = 1;
+            for (String name = reader.readLine(); name != null; name = reader.readLine(), line++) {
+                name = name.trim();
+                if (name.isEmpty()) {
+                    throw new Exception("Line " + line + ": Candidate name cannot be blank.");
+                } else if (!seen.add(name)) {
+                    throw new Exception("Line " + line + ": Candidate name cannot be repeated.");
+                } else if (candidateNames.size() == MAX_CANDIDATES) {
+                    throw new Exception("Line " + line + ": There cannot be more than " + MAX_CANDIDATES + " candidates.");
+                }
+                candidateNames.add(name);
+            }
+        }
+        if (candidateNames.isEmpty()) {
+            throw new Exception("No candidates were found.");
+        }
+        return new CandidateRegistry(candidateNames);
+    }
+    
+    /**
+     * Gets the number of candidates.
+     * @return The number of candidates.
+     */
+    public int size() {
+        return names.length;
+    }
+    
+    /**
+     * Gets the name of a candidate.
+     * @param id The ID of the candidate.
+     * @return The name.
+     */
+    public String getName(int id) {
+        return names[id];
+    }
+    
+    /**
+     * Gets the count of a candidate.
+     * @param id The ID of the candidate.
+     * @return The count.
+     */
+    public int getCount(int id) {
+        return counts[id];
+    }
+    
+    /**
+     * Sets the count of a candidate.
+     * @param id The ID of the candidate.
+     * @param count The vote count.
+     * @pre count is not negative.
+     */
+    public void setCount(int id, int count) {
+        assert count >= 0;
+        counts[id] = count;
+    }
+    
+    /**
+     * Sets the counts of every candidate.
+     * @param newCounts The vote count of each candidate.
+     * @pre newCounts has a count for each candidate.
+     * @post The counts match newCounts.
+     */
+    public void setCounts(int[] newCounts) {
+        assert newCounts.length == counts.length;
+        System.arraycopy(newCounts, 0, counts, 0, counts.length);
+    }
+    
+    /**
+     * Determines if a candidate has been eliminated.
+     * @param id The ID of the candidate.
+     * @return True if the candidate was eliminated.
+     */
+    public boolean isEliminated(int id) {
+        return eliminated[id];
+    }
+    
+    /**
+     * Eliminates a candidate.
+     * @param id The ID of the candidate.
+     * @pre The candidate is not eliminated.
+     * @post The candidate is eliminated.
+     */
+    public void eliminate(int id) {
+        assert eliminated[id] == false;
+        eliminated[id] = true;
+    }
+    
+    /**
+     * Resets the elimination of a candidate.
+     * @param id The ID of the candidate.
+     * @post The candidate is not eliminated.
+     */
+    public void resetElimination(int id) {
+        eliminated[id] = false;
+    }
+    
+    /**
+     * Resets the elimination of every candidate.
+     * @post No candidates are eliminated.
+     */
+    public void resetEliminations() {
+        Arrays.fill(eliminated, false);
+    }
+    
+    /**
+     * Resets the count of every candidate.
+     * @post Every count is 0.
+     */
+    public void resetCounts() {
+        Arrays.fill(counts, 0);
+    }
+    
+    /**
+     * Gets the counts, which must not be changed.
+     * @return The count of each candidate.
+     */
+    int[] getCounts() {
+        return counts;
+    }
+    
+    /**
+     * Gets the elimination state, which must not be changed.
+     * @return Whether each candidate is eliminated.
+     */
+    boolean[] getEliminated() {
+        return eliminated;
+    }
+}
@@ -0,0 +1,228 @@
+package alternatevote;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of loading and counting: the rate ballots are added, the time and transfers of each round, the time spent
+ * notifying listeners and updating views, and the memory used by each ballot. They are exposed as an MBean and can
+ * be written as a log line at a fixed period.
+ *
+ * Models only record metrics when they have been given a CountMetrics, so a model without one pays a null check on
+ * each change. Recording only adds to atomic counters, so it allocates nothing and can be shared by models counting
+ * on several threads.
+ * @author ryansmith
+ */
+public class CountMetrics implements CountMetricsMBean {
+    private static final String DOMAIN = "alternatevote";
+    private final AtomicLong ingestedBallots = new AtomicLong();
+    private final AtomicLong ingestNanos = new AtomicLong();
+    private final AtomicLong roundCount = new AtomicLong();
+    private final AtomicLong roundNanos = new AtomicLong();
+    private final AtomicLong maxRoundNanos = new AtomicLong();
+    private final AtomicLong transferredBallots = new AtomicLong();
+    private final AtomicLong notificationCount = new AtomicLong();
+    private final AtomicLong notificationNanos = new AtomicLong();
+    private final AtomicLong viewUpdateCount = new AtomicLong();
+    private final AtomicLong viewUpdateNanos = new AtomicLong();
+    private volatile long lastRoundNanos = 0;
+    private volatile long lastTransferredBallots = 0;
+    private volatile long storedBallots = 0;
+    private volatile long storedBytes = 0;
+    private ScheduledExecutorService logger = null;
+    
+    /**
+     * Records ballots that have been added.
+     * @param startNanos The System.nanoTime when adding started.
+     * @param ballots The number of ballots added.
+     */
+    public void recordIngest(long startNanos, long ballots) {
+        ingestNanos.addAndGet(System.nanoTime() - startNanos);
+        ingestedBallots.addAndGet(ballots);
+    }
+    
+    /**
+     * Records the size of the ballot store after ballots have been added.
+     * @param ballots The number of ballots in the store.
+     * @param bytes The bytes used by the store.
+     */
+    public void recordFootprint(long ballots, long bytes) {
+        storedBallots = ballots;
+        storedBytes = bytes;
+    }
+    
+    /**
+     * Records a round that has been counted.
+     * @param startNanos The System.nanoTime when the round started.
+     * @param transferred The number of ballots counted or moved between piles in the round.
+     */
+    public void recordRound(long startNanos, long transferred) {
+        long nanos = System.nanoTime() - startNanos;
+        roundCount.incrementAndGet();
+        roundNanos.addAndGet(nanos);
+        maxRoundNanos.accumulateAndGet(nanos, Math::max);
+        transferredBallots.addAndGet(transferred);
+        lastRoundNanos = nanos;
+        lastTransferredBallots = transferred;
+    }
+    
+    /**
+     * Records the notification of listeners.
+     * @param startNanos The System.nanoTime when the listeners started to be notified.
+     */
+    public void recordNotification(long startNanos) {
+        notificationNanos.addAndGet(System.nanoTime() - startNanos);
+        notificationCount.incrementAndGet();
+    }
+    
+    /**
+     * Records a view updating itself after a change.
+     * @param startNanos The System.nanoTime when the update started.
+     */
+    public void recordViewUpdate(long startNanos) {
+        viewUpdateNanos.addAndGet(System.nanoTime() - startNanos);
+        viewUpdateCount.incrementAndGet();
+    }
+    
+    @Override
+    public long getIngestedBallots() {
+        return ingestedBallots.get();
+    }
+    
+    @Override
+    public double getIngestRate() {
+        long nanos = ingestNanos.get();
+        return nanos == 0 ? 0 : ingestedBallots.get() * 1e9 / nanos;
+    }
+    
+    @Override
+    public long getRoundCount() {
+        return roundCount.get();
+    }
+    
+    @Override
+    public double getLastRoundMillis() {
+        return lastRoundNanos / 1e6;
+    }
+    
+    @Override
+    public double getMeanRoundMillis() {
+        long rounds = roundCount.get();
+        return rounds == 0 ? 0 : roundNanos.get() / 1e6 / rounds;
+    }
+    
+    @Override
+    public double getMaxRoundMillis() {
+        return maxRoundNanos.get() / 1e6;
+    }
+    
+    @Override
+    public long getTransferredBallots() {
+        return transferredBallots.get();
+    }
+    
+    @Override
+    public long getLastTransferredBallots() {
+        return lastTransferredBallots;
+    }
+    
+    @Override
+    public long getNotificationCount() {
+        return notificationCount.get();
+    }
+    
+    @Override
+    public double getNotificationMillis() {
+        return notificationNanos.get() / 1e6;
+    }
+    
+    @Override
+    public long getViewUpdateCount() {
+        return viewUpdateCount.get();
+    }
+    
+    @Override
+    public double getViewUpdateMillis() {
+        return viewUpdateNanos.get() / 1e6;
+    }
+    
+    @Override
+    public double getBytesPerBallot() {
+        long ballots = storedBallots;
+        return ballots == 0 ? 0 : (double) storedBytes / ballots;
+    }
+    
+    @Override
+    public void reset() {
+        ingestedBallots.set(0);
+        ingestNanos.set(0);
+        roundCount.set(0);
+        roundNanos.set(0);
+        maxRoundNanos.set(0);
+        transferredBallots.set(0);
+        notificationCount.set(0);
+        notificationNanos.set(0);
+        viewUpdateCount.set(0);
+        viewUpdateNanos.set(0);
+        lastRoundNanos = 0;
+        lastTransferredBallots = 0;
+    }
+    
+    /**
+     * Registers the metrics with the platform MBean server so that they can be read with JMX tools.
+     * @param name The name that identifies the metrics among others in the process.
+     * @return The object name that the metrics were registered under.
+     * @throws JMException If the metrics cannot be registered, such as when the name is already used.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=CountMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+    
+    /**
+     * Starts writing the metrics as a log line at a fixed period on a background thread.
+     * @param periodSeconds The seconds between log lines.
+     * @param out The stream to write the log lines to.
+     * @pre periodSeconds is at least 1.
+     * @pre Logging has not started.
+     */
+    public synchronized void startLogging(long periodSeconds, PrintStream out) {
+        assert periodSeconds >= 1;
+        assert logger == null;
+        logger = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "Count metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> out.println(format()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Stops writing log lines.
+     * @post No more log lines are written.
+     */
+    public synchronized void stopLogging() {
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+    }
+    
+    /**
+     * Formats the metrics as a log line.
+     * @return The log line.
+     */
+    public String format() {
+        return String.format("Metrics: %d ballots ingested (%.0f a second, %.1f bytes each), %d rounds (last %.3f ms, mean %.3f ms, max %.3f ms), "
+            + "%d ballots transferred (%d in the last round), %d notifications (%.3f ms), %d view updates (%.3f ms)",
+            getIngestedBallots(), getIngestRate(), getBytesPerBallot(), getRoundCount(), getLastRoundMillis(), getMeanRoundMillis(), getMaxRoundMillis(),
+            getTransferredBallots(), getLastTransferredBallots(), getNotificationCount(), getNotificationMillis(), getViewUpdateCount(), getViewUpdateMillis());
+    }
+}
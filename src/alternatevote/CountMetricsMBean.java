@@ -0,0 +1,90 @@
+package alternatevote;
+
+/**
+ * The attributes and operations of count metrics exposed through JMX.
+ * @author ryansmith
+ */
+public interface CountMetricsMBean {
+    /**
+     * Gets the number of ballots added by loading files, adding votes and streaming.
+     * @return The number of ballots.
+     */
+    long getIngestedBallots();
+    
+    /**
+     * Gets the number of ballots added per second of time spent adding them.
+     * @return The rate (0 if no ballots have been added).
+     */
+    double getIngestRate();
+    
+    /**
+     * Gets the number of rounds counted.
+     * @return The number of rounds.
+     */
+    long getRoundCount();
+    
+    /**
+     * Gets the time taken to count the last round.
+     * @return The time in milliseconds.
+     */
+    double getLastRoundMillis();
+    
+    /**
+     * Gets the mean time taken to count a round.
+     * @return The time in milliseconds (0 if no rounds have been counted).
+     */
+    double getMeanRoundMillis();
+    
+    /**
+     * Gets the longest time taken to count a round.
+     * @return The time in milliseconds.
+     */
+    double getMaxRoundMillis();
+    
+    /**
+     * Gets the number of ballots counted or moved between piles in every round.
+     * @return The number of ballots.
+     */
+    long getTransferredBallots();
+    
+    /**
+     * Gets the number of ballots counted or moved between piles in the last round.
+     * @return The number of ballots.
+     */
+    long getLastTransferredBallots();
+    
+    /**
+     * Gets the number of times listeners were told about changes.
+     * @return The number of notifications.
+     */
+    long getNotificationCount();
+    
+    /**
+     * Gets the total time spent telling listeners about changes on the thread that changed the model.
+     * @return The time in milliseconds.
+     */
+    double getNotificationMillis();
+    
+    /**
+     * Gets the number of times the views updated themselves.
+     * @return The number of updates.
+     */
+    long getViewUpdateCount();
+    
+    /**
+     * Gets the total time the views spent updating themselves.
+     * @return The time in milliseconds.
+     */
+    double getViewUpdateMillis();
+    
+    /**
+     * Gets the memory used to store each ballot after the last ballots were added.
+     * @return The bytes of the ballot store divided by the number of ballots (0 if there are none).
+     */
+    double getBytesPerBallot();
+    
+    /**
+     * Resets every metric to 0.
+     */
+    void reset();
+}
@@ -0,0 +1,128 @@
+package alternatevote;
+
+import java.util.ArrayList;
+import java.util.Objects;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A table model that lists the continuing candidates by their counts. Each update is compared with the counts already
+ * shown, so that a new round only repaints the cells that changed, inserting or deleting rows as candidates come back
+ * or are eliminated, instead of the table being rebuilt.
+ * @author ryansmith
+ */
+@SuppressWarnings("serial")
+public class CountsTableModel extends AbstractTableModel {
+    private static final String[] COLUMN_NAMES = {"Name", "Count", "Transferred"};
+    private Counts counts = new Counts(0);
+    private int[] order = new int[0];
+    
+    /**
+     * Shows new counts, notifying the table of the rows and cells that changed.
+     * @param newCounts The counts to show.
+     * @pre newCounts is not null.
+     * @post The table lists the continuing candidates in newCounts, highest count first.
+     */
+    public void show(Counts newCounts) {
+        assert newCounts != null;
+        Counts oldCounts = counts;
+        int[] oldOrder = order;
+        counts = newCounts;
+        order = sort(newCounts);
+        
+        // Inserts or deletes the rows at the end when the number of continuing candidates changes.
+        if (order.length > oldOrder.length) {
+            fireTableRowsInserted(oldOrder.length, order.length - 1);
+        } else if (order.length < oldOrder.length) {
+            fireTableRowsDeleted(order.length, oldOrder.length - 1);
+        }
+        
+        // Repaints only the cells of the remaining rows that show something different.
+        int rows = Math.min(order.length, oldOrder.length);
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < COLUMN_NAMES.length; column++) {
+                if (!Objects.equals(getValue(oldCounts, oldOrder[row], column), getValue(counts, order[row], column))) {
+                    fireTableCellUpdated(row, column);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sorts the continuing candidates by their counts.
+     * @param counts The counts.
+     * @return The indexes of the continuing candidates, highest count first.
+     */
+    private static int[] sort(Counts counts) {
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (int id = 0; id < counts.names.length; id++) {
+            if (!counts.eliminated[id]) {
+                ids.add(id);
+            }
+        }
+        ids.sort((id1, id2) -> Integer.compare(counts.counts[id2], counts.counts[id1]));
+        
+        int[] sorted = new int[ids.size()];
+        for (int index = 0; index < sorted.length; index++) {
+            sorted[index] = ids.get(index);
+        }
+        return sorted;
+    }
+    
+    /**
+     * Gets the value of a candidate's cell.
+     * @param counts The counts.
+     * @param id The index of the candidate.
+     * @param column The column.
+     * @return The name, count or transfer of the candidate.
+     */
+    private static Object getValue(Counts counts, int id, int column) {
+        if (column == 0) {
+            return counts.names[id];
+        } else if (column == 1) {
+            return counts.counts[id];
+        }
+        return counts.transfers[id];
+    }
+    
+    @Override
+    public int getRowCount() {
+        return order.length;
+    }
+    
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+    
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+    
+    @Override
+    public Object getValueAt(int row, int column) {
+        return getValue(counts, order[row], column);
+    }
+    
+    @Override
+    public boolean isCellEditable(int rowIndex, int columnIndex) {
+        return false; // Stops cells being edited.
+    }
+    
+    /**
+     * A copy of the candidates' counts that can be shown on the event dispatch thread.
+     */
+    static class Counts {
+        final String[] names;
+        final boolean[] eliminated;
+        final int[] counts;
+        final String[] transfers;
+        
+        Counts(int candidateCount) {
+            names = new String[candidateCount];
+            eliminated = new boolean[candidateCount];
+            counts = new int[candidateCount];
+            transfers = new String[candidateCount];
+        }
+    }
+}
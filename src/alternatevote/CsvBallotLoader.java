@@ -0,0 +1,408 @@
+package alternatevote;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A loader that reads ballots from a CSV file by memory mapping it and parsing the candidate IDs straight from
+ * the bytes into a ballot store. Each line is a ballot and each preference is separated by a comma. Lines may
+ * end with "\n" or "\r\n" and the last line does not need to end with a new line. As with the String.split and
+ * Integer.parseInt loader that this replaced, empty fields at the end of a line are ignored and an ID may have a sign.
+ *
+ * Large files are split into chunks at line boundaries which are parsed and validated on a fork-join pool and
+ * then merged into the ballot store in file order.
+ *
+ * A memory limit is checked as ballots are added, so a file whose ballots and piles would not fit fails part of the
+ * way through instead of after it has been loaded. The chunks parsed in parallel add their memory to a shared total.
+ * @author ryansmith
+ */
+public class CsvBallotLoader {
+    private static final long WINDOW_SIZE = 1 << 26;
+    private static final long MIN_CHUNK_SIZE = 1 << 22;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int MAX_ID_DIGITS = 9;
+    private static final int PROGRESS_INTERVAL = 1 << 14;
+    private final int candidateCount;
+    private final ForkJoinPool pool;
+    private Progress progress = new Progress();
+    private long memoryLimit = Long.MAX_VALUE;
+    private AtomicLong memoryUsed = new AtomicLong();
+    private long reportedMemory = 0;
+    private String errorMessage;
+    private int[] preferences = new int[16];
+    private final long[] selected;
+    private int length;
+    private int id;
+    private int digits;
+    private int significantDigits;
+    private boolean signed;
+    private boolean negative;
+    private boolean emptyField;
+    private boolean carriageReturn;
+    private int line;
+    
+    public CsvBallotLoader(int candidateCount) {
+        this(candidateCount, ForkJoinPool.commonPool());
+    }
+    
+    public CsvBallotLoader(int candidateCount, ForkJoinPool pool) {
+        this.candidateCount = candidateCount;
+        selected = new long[(candidateCount + 63) / 64];
+        this.pool = pool;
+    }
+    
+    /**
+     * Sets the progress that loading advances.
+     * @param progress The progress.
+     * @pre progress is not null.
+     */
+    public void setProgress(Progress progress) {
+        assert progress != null;
+        this.progress = progress;
+    }
+    
+    /**
+     * Sets the most memory that the ballot store and its piles may need once the file has been loaded.
+     * @param bytes The limit in bytes, as estimated by AVModel.estimateMemory.
+     * @pre bytes is positive.
+     */
+    public void setMemoryLimit(long bytes) {
+        assert bytes > 0;
+        memoryLimit = bytes;
+    }
+    
+    /**
+     * Parses a ballot that arrives as a single line, such as from a stream, in the same way as a line of a file.
+     * @param text The line without its new line.
+     * @param number The line number for error messages.
+     * @return The candidate IDs of the preferences.
+     * @throws Exception If the ballot is invalid (the message includes the line number).
+     * @pre text is not null.
+     */
+    public int[] parseLine(String text, int number) throws Exception {
+        assert text != null;
+        startLine(number);
+        for (int index = 0; index < text.length(); index++) {
+            char character = text.charAt(index);
+            if (character > 0x7F || character == '\n' || character == '\r') {
+                throw error("Invalid candidate ID.");
+            }
+            parse((byte) character, null);
+        }
+        endBallot();
+        return Arrays.copyOf(preferences, length);
+    }
+    
+    /**
+     * Loads the ballots in a CSV file into a ballot store.
+     * @param absolutePath The absolute path of the file to load ballots from.
+     * @param ballots The store to add the ballots to.
+     * @throws FileNotFoundException
+     * @throws Exception If a ballot is invalid or the ballots need more than the memory limit (the message includes
+     * the line number).
+     * @throws java.util.concurrent.CancellationException If the progress is cancelled.
+     * @pre ballots is not null.
+     * @post The ballots before any invalid line have been added to the store.
+     */
+    public void load(String absolutePath, BallotStore ballots) throws FileNotFoundException, Exception {
+        assert ballots != null;
+        reportedMemory = AVModel.estimateMemory(ballots);
+        memoryUsed.set(reportedMemory);
+        try (RandomAccessFile file = new RandomAccessFile(absolutePath, "r");
+             FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            int chunkCount = (int) Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, size / MIN_CHUNK_SIZE);
+            if (chunkCount < 2) {
+                load(channel, 0, size, 1, ballots);
+            } else {
+                loadChunks(channel, findChunkStarts(channel, chunkCount), ballots);
+            }
+        }
+    }
+    
+    /**
+     * Parses chunks of a CSV file in parallel and merges them into a ballot store in file order.
+     * @param channel The channel of the file.
+     * @param chunkStarts The positions where the chunks start followed by the size of the file.
+     * @param ballots The store to add the ballots to.
+     * @throws Exception If a ballot is invalid (the message includes the line number in the file).
+     * @post The ballots before any invalid line have been added to the store.
+     */
+    private void loadChunks(FileChannel channel, long[] chunkStarts, BallotStore ballots) throws Exception {
+        ArrayList<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+        
+        // Parses each chunk into its own store, counting lines from 1 within the chunk.
+        for (int index = 0; index + 1 < chunkStarts.length; index++) {
+            long start = chunkStarts[index];
+            long end = chunkStarts[index + 1];
+            tasks.add(pool.submit(() -> {
+                CsvBallotLoader loader = new CsvBallotLoader(candidateCount, pool);
+                loader.setProgress(progress);
+                loader.memoryLimit = memoryLimit;
+                loader.memoryUsed = memoryUsed;
+                Chunk chunk = new Chunk(new BallotStore(ballots.isCollapsing()));
+                try {
+                    chunk.lines = loader.load(channel, start, end, 1, chunk.ballots);
+                } catch (CancellationException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    chunk.errorLine = loader.line;
+                    chunk.errorMessage = loader.errorMessage == null ? ex.getMessage() : loader.errorMessage;
+                }
+                return chunk;
+            }));
+        }
+        
+        // Merges the chunks in file order, offsetting line numbers by the lines in earlier chunks.
+        int firstLine = 1;
+        for (ForkJoinTask<Chunk> task : tasks) {
+            Chunk chunk = task.join();
+            ballots.addAll(chunk.ballots);
+            if (chunk.errorMessage == null && AVModel.estimateMemory(ballots) > memoryLimit) {
+                chunk.errorLine = chunk.lines;
+                chunk.errorMessage = memoryError();
+            }
+            if (chunk.errorMessage != null) {
+                tasks.forEach((remaining) -> remaining.cancel(false));
+                line = firstLine + chunk.errorLine - 1;
+                throw error(chunk.errorMessage);
+            }
+            firstLine += chunk.lines;
+        }
+    }
+    
+    /**
+     * Finds where chunks of a CSV file start so that each chunk starts at the beginning of a line.
+     * @param channel The channel of the file.
+     * @param chunkCount The number of chunks to aim for.
+     * @return The positions where the chunks start followed by the size of the file.
+     * @throws IOException
+     */
+    private static long[] findChunkStarts(FileChannel channel, int chunkCount) throws IOException {
+        long size = channel.size();
+        long[] starts = new long[chunkCount + 1];
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        int count = 1;
+        
+        // Moves each evenly spaced position forward to just after the next new line.
+        for (int index = 1; index < chunkCount; index++) {
+            long position = Math.max(size * index / chunkCount, starts[count - 1]);
+            long start = size;
+            while (position < size && start == size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                for (int offset = 0; offset < read; offset++) {
+                    if (buffer.get(offset) == '\n') {
+                        start = position + offset + 1;
+                        break;
+                    }
+                }
+                position += Math.max(read, 0);
+            }
+            if (start > starts[count - 1] && start < size) {
+                starts[count++] = start;
+            }
+        }
+        
+        starts[count++] = size;
+        return Arrays.copyOf(starts, count);
+    }
+    
+    /**
+     * Loads the ballots in a region of a CSV file into a ballot store.
+     * @param channel The channel of the file.
+     * @param start The position of the first byte of the region (the start of a line).
+     * @param end The position after the last byte of the region (the end of a line or the file).
+     * @param firstLine The line number of the first line in the region.
+     * @param ballots The store to add the ballots to.
+     * @return The number of lines in the region.
+     * @throws Exception If a ballot is invalid or the ballots need more than the memory limit (the message includes the line number).
+     * @pre channel is open.
+     * @post The ballots before any invalid line have been added to the store.
+     */
+    private int load(FileChannel channel, long start, long end, int firstLine, BallotStore ballots) throws Exception {
+        assert channel != null;
+        startLine(firstLine);
+        
+        // Maps the region a window at a time so that files larger than 2GB can be read.
+        for (long position = start; position < end; position += WINDOW_SIZE) {
+            long windowSize = Math.min(WINDOW_SIZE, end - position);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+            while (window.hasRemaining()) {
+                parse(window.get(), ballots);
+            }
+        }
+        
+        // Adds the last ballot when the region does not end with a new line.
+        if (carriageReturn || length > 0 || digits > 0 || signed) {
+            endLine(ballots);
+        }
+        checkMemory(ballots);
+        return line - firstLine;
+    }
+    
+    /**
+     * Parses the next byte of the file.
+     * @param character The byte.
+     * @param ballots The store to add a completed ballot to.
+     * @throws Exception If the byte cannot be part of a ballot.
+     */
+    private void parse(byte character, BallotStore ballots) throws Exception {
+        if (carriageReturn && character != '\n') {
+            throw error("Invalid candidate ID.");
+        } else if (emptyField && character != ',' && character != '\n' && character != '\r') {
+            // Only allows empty fields at the end of the line.
+            throw error("Invalid candidate ID.");
+        } else if (character >= '0' && character <= '9') {
+            // Only counts digits after any leading zeros towards the limit that keeps the ID from overflowing.
+            if (significantDigits == MAX_ID_DIGITS) {
+                throw error("Candidate could not be found.");
+            }
+            id = id * 10 + (character - '0');
+            digits += 1;
+            if (id > 0) {
+                significantDigits += 1;
+            }
+        } else if (character == ',') {
+            if (digits == 0 && !signed && length > 0) {
+                emptyField = true;
+            } else {
+                endPreference();
+            }
+        } else if (character == '\n') {
+            endLine(ballots);
+        } else if (character == '\r') {
+            carriageReturn = true;
+        } else if ((character == '-' || character == '+') && digits == 0 && !signed) {
+            signed = true;
+            negative = character == '-';
+        } else {
+            throw error("Invalid candidate ID.");
+        }
+    }
+    
+    /**
+     * Ends the preference being parsed.
+     * @throws Exception If there were no digits for the preference.
+     * @post The preference has been added to the ballot being parsed.
+     */
+    private void endPreference() throws Exception {
+        if (digits == 0) {
+            throw error(length == 0 && !signed ? "No preferences selected." : "Invalid candidate ID.");
+        }
+        if (length == preferences.length) {
+            preferences = Arrays.copyOf(preferences, length * 2);
+        }
+        preferences[length++] = negative ? -id : id;
+        id = 0;
+        digits = 0;
+        significantDigits = 0;
+        signed = false;
+        negative = false;
+    }
+    
+    /**
+     * Ends the line being parsed.
+     * @param ballots The store to add the ballot to.
+     * @throws Exception If the ballot is invalid.
+     * @post The ballot has been validated and added to the store.
+     */
+    private void endLine(BallotStore ballots) throws Exception {
+        endBallot();
+        ballots.add(preferences, length);
+        if (line % PROGRESS_INTERVAL == 0) {
+            progress.advance(PROGRESS_INTERVAL);
+            checkMemory(ballots);
+        }
+        startLine(line + 1);
+    }
+    
+    /**
+     * Ends the ballot being parsed and validates it.
+     * @throws Exception If the ballot is invalid.
+     * @post The ballot's preferences are the first length of preferences.
+     */
+    private void endBallot() throws Exception {
+        // Ignores an empty field after the last preference, such as in "0,1,".
+        if (digits > 0 || signed || length == 0) {
+            endPreference();
+        }
+        try {
+            AVModel.validateVote(preferences, length, candidateCount, selected);
+        } catch (Exception ex) {
+            throw error(ex.getMessage());
+        }
+    }
+    
+    /**
+     * Adds the memory the store has grown by since the last check to the total for the file.
+     * @param ballots The store that the ballots are being added to.
+     * @throws Exception If the total is more than the memory limit.
+     */
+    private void checkMemory(BallotStore ballots) throws Exception {
+        long memory = AVModel.estimateMemory(ballots);
+        long total = memoryUsed.addAndGet(memory - reportedMemory);
+        reportedMemory = memory;
+        if (total > memoryLimit) {
+            throw error(memoryError());
+        }
+    }
+    
+    /**
+     * Creates the message for ballots that need more than the memory limit.
+     * @return The message.
+     */
+    private String memoryError() {
+        return "The ballots need more than the memory limit of " + memoryLimit + " bytes.";
+    }
+    
+    /**
+     * Resets the parser for a new line.
+     * @param number The line number.
+     */
+    private void startLine(int number) {
+        line = number;
+        length = 0;
+        id = 0;
+        digits = 0;
+        significantDigits = 0;
+        signed = false;
+        negative = false;
+        emptyField = false;
+        carriageReturn = false;
+    }
+    
+    /**
+     * Creates an error for the line being parsed.
+     * @param message The message of the error.
+     * @return The error.
+     */
+    private Exception error(String message) {
+        errorMessage = message;
+        return new Exception("Line " + line + ": " + message);
+    }
+    
+    /**
+     * The result of parsing a chunk of a CSV file.
+     */
+    private static class Chunk {
+        private final BallotStore ballots;
+        private int lines;
+        private int errorLine;
+        private String errorMessage;
+        
+        private Chunk(BallotStore ballots) {
+            this.ballots = ballots;
+        }
+    }
+}
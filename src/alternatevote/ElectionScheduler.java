@@ -0,0 +1,310 @@
+package alternatevote;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A scheduler that counts many independent elections, such as the constituencies of a general election, in one
+ * process. Each election has its own model and candidate registry, so no mutable candidate state is shared.
+ *
+ * The elections are counted on a pool of threads one step at a time: loading is the first step and each round is
+ * a step after that. The pool's threads share one first-in first-out queue, and a finished step queues the
+ * election's next step at the back of it, so the elections take turns a round at a time instead of one large
+ * election holding a thread until it is finished. Each election's model is given the memory limit before it is
+ * loaded, so loading fails as soon as its ballots and piles need more, and the model is released as soon as the
+ * election is finished so that only its history is kept.
+ * @author ryansmith
+ */
+public class ElectionScheduler {
+    private final int parallelism;
+    private final long memoryLimit;
+    private final ArrayList<Election> elections = new ArrayList<>();
+    private ExecutorService pool = null;
+    private CountDownLatch remaining = null;
+    
+    /**
+     * The state of an election in the scheduler.
+     */
+    public enum State {
+        /** The election is waiting to be loaded. */
+        WAITING,
+        /** The election has been loaded and is being counted. */
+        COUNTING,
+        /** A candidate has won the election. */
+        FINISHED,
+        /** The election could not be loaded or counted. */
+        FAILED
+    }
+    
+    /**
+     * Creates a scheduler.
+     * @param parallelism The number of threads to count elections on.
+     * @param memoryLimit The most bytes each election's ballots and piles can use. Every election may be loaded
+     * before any has finished, so this should be a share of the heap for each election.
+     * @pre parallelism is at least 1.
+     * @pre memoryLimit is positive.
+     */
+    public ElectionScheduler(int parallelism, long memoryLimit) {
+        assert parallelism >= 1;
+        assert memoryLimit > 0;
+        this.parallelism = parallelism;
+        this.memoryLimit = memoryLimit;
+    }
+    
+    /**
+     * Adds an election that has already been loaded.
+     * @param name The name of the election.
+     * @param model The model of the election, which must not be used elsewhere until the election is finished.
+     * @return The election, which reports its progress and result.
+     * @pre The scheduler has not started.
+     * @pre model is not null and has not started counting.
+     */
+    public Election addElection(String name, AVModel model) {
+        return addElection(name, model, (loaded) -> {
+        });
+    }
+    
+    /**
+     * Adds an election that is loaded on the pool when it is first scheduled.
+     * @param name The name of the election.
+     * @param model The model of the election, which must not be used elsewhere until the election is finished.
+     * @param loader The loader that adds the election's votes to the model.
+     * @return The election, which reports its progress and result.
+     * @pre The scheduler has not started.
+     * @pre model is not null and has not started counting.
+     * @pre loader is not null.
+     */
+    public Election addElection(String name, AVModel model, Loader loader) {
+        assert pool == null;
+        assert model != null && !model.hasStarted();
+        assert loader != null;
+        Election election = new Election(name, model, loader);
+        elections.add(election);
+        return election;
+    }
+    
+    /**
+     * Starts counting every election on the pool.
+     * @pre The scheduler has not started.
+     * @post Every election has been scheduled.
+     */
+    public void start() {
+        assert pool == null;
+        pool = Executors.newFixedThreadPool(parallelism, (runnable) -> {
+            Thread thread = new Thread(runnable, "Election scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        remaining = new CountDownLatch(elections.size());
+        for (Election election : elections) {
+            pool.execute(election::step);
+        }
+        if (elections.isEmpty()) {
+            pool.shutdown();
+        }
+    }
+    
+    /**
+     * Waits until every election has finished or failed.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     * @pre The scheduler has started.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        assert remaining != null;
+        remaining.await();
+    }
+    
+    /**
+     * Gets the elections in the order they were added.
+     * @return The elections.
+     */
+    public ArrayList<Election> getElections() {
+        return new ArrayList<>(elections);
+    }
+    
+    /**
+     * Gets the number of elections that have not finished or failed.
+     * @return The number of elections.
+     */
+    public int getRemainingCount() {
+        return remaining == null ? elections.size() : (int) remaining.getCount();
+    }
+    
+    /**
+     * Gets the number of finished elections won by each candidate name, which aggregates the seats won by each party
+     * when candidates are named by party.
+     * @return The number of elections won by each name, in name order.
+     */
+    public TreeMap<String, Integer> getSeats() {
+        TreeMap<String, Integer> seats = new TreeMap<>();
+        for (Election election : elections) {
+            String winner = election.getWinnerName();
+            if (winner != null) {
+                seats.merge(winner, 1, Integer::sum);
+            }
+        }
+        return seats;
+    }
+    
+    /**
+     * A loader that adds the votes of an election to its model on the pool.
+     */
+    public interface Loader {
+        /**
+         * Adds the votes of the election.
+         * @param model The model of the election, whose memory limit has been set.
+         * @throws Exception If the votes cannot be loaded or need more than the memory limit.
+         */
+        void load(AVModel model) throws Exception;
+    }
+    
+    /**
+     * An election in the scheduler. Its state can be read from any thread while it is counted.
+     */
+    public class Election {
+        private final String name;
+        private Loader loader;
+        private AVModel model;
+        private volatile State state = State.WAITING;
+        private volatile int roundCount = 0;
+        private volatile RoundHistory history = null;
+        private volatile String winnerName = null;
+        private volatile String error = null;
+        
+        private Election(String name, AVModel model, Loader loader) {
+            this.name = name;
+            this.model = model;
+            this.loader = loader;
+        }
+        
+        /**
+         * Gets the name.
+         * @return The name.
+         */
+        public String getName() {
+            return name;
+        }
+        
+        /**
+         * Gets the state.
+         * @return The state.
+         */
+        public State getState() {
+            return state;
+        }
+        
+        /**
+         * Gets the number of rounds counted so far.
+         * @return The number of rounds.
+         */
+        public int getRoundCount() {
+            return roundCount;
+        }
+        
+        /**
+         * Gets the history of the count.
+         * @return The history (null until the election is finished).
+         */
+        public RoundHistory getHistory() {
+            return history;
+        }
+        
+        /**
+         * Gets the name of the winner.
+         * @return The name (null until the election is finished, or if nobody voted).
+         */
+        public String getWinnerName() {
+            return winnerName;
+        }
+        
+        /**
+         * Gets why the election failed.
+         * @return The error message (null unless the election failed).
+         */
+        public String getError() {
+            return error;
+        }
+        
+        /**
+         * Loads the election or counts its next round, then queues the next step unless the election is over.
+         */
+        private void step() {
+            try {
+                if (loader != null) {
+                    load();
+                } else if (!model.hasStarted()) {
+                    model.startCounting();
+                } else {
+                    model.redistribute();
+                }
+            } catch (Exception ex) {
+                fail(ex.getMessage());
+                return;
+            } catch (Throwable ex) {
+                // Fails the election on an error such as running out of memory too, so that waiting for it ends.
+                fail(ex.toString());
+                return;
+            }
+            roundCount = model.getRound();
+            
+            // Counting stops after the first round when it has been decided.
+            if (roundCount > 0 && !model.hasStarted()) {
+                finish();
+            } else {
+                pool.execute(this::step);
+            }
+        }
+        
+        /**
+         * Loads the model with the memory limit, then checks that the ballots added by any other means fit too.
+         * @throws Exception If the election cannot be loaded or needs too much memory.
+         */
+        private void load() throws Exception {
+            model.setMemoryLimit(memoryLimit);
+            loader.load(model);
+            loader = null;
+            long memory = model.estimateMemory();
+            if (memory > memoryLimit) {
+                throw new Exception("Election needs " + memory + " bytes, more than the limit of " + memoryLimit + " bytes.");
+            }
+            state = State.COUNTING;
+        }
+        
+        /**
+         * Records the result and releases the model.
+         */
+        private void finish() {
+            history = model.getHistory();
+            int winner = history.getLeaderId();
+            winnerName = winner == -1 ? null : model.getCandidates().get(winner).getName();
+            model = null;
+            state = State.FINISHED;
+            done();
+        }
+        
+        /**
+         * Records why the election failed and releases the model.
+         * @param message The error message.
+         */
+        private void fail(String message) {
+            error = message;
+            loader = null;
+            model = null;
+            state = State.FAILED;
+            done();
+        }
+        
+        /**
+         * Counts the election as done, shutting the pool down after the last election.
+         */
+        private void done() {
+            remaining.countDown();
+            if (remaining.getCount() == 0) {
+                pool.shutdown();
+            }
+        }
+    }
+}
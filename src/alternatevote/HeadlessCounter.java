@@ -0,0 +1,386 @@
+package alternatevote;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.management.JMException;
+
+/**
+ * A counter that runs without a user interface so that counts can be scripted on servers. It loads ballot files into
+ * a model, counts every round until there is a result and writes each round's counts, the winner and timings as
+ * text. It only uses the model, so no AWT or Swing classes are loaded.
+ * @author ryansmith
+ */
+public class HeadlessCounter {
+    private static final String USAGE = "Usage: java -jar Coursework.jar [--output FILE] [--candidates FILE] [--collapse] [--threads N] [--merge | --constituencies | --shard FILE] [--bulk] [--seed N | --lowest-id] [--tie-runs N] [--metrics SECONDS] FILE...\n"
+        + "Counts each CSV (or .avb ballot) FILE as a separate election, or all of them as one election with --merge.\n"
+        + "Ties are broken at random unless a seed is given or --lowest-id is used, and --tie-runs reruns each count\n"
+        + "with different seeds to show how often each candidate wins. The candidates are read from a file with one name\n"
+        + "on each line in ID order (the four default candidates are used without one). --bulk excludes every candidate\n"
+        + "that is mathematically defeated in one round. --constituencies counts the files as separate seats at the same\n"
+        + "time on the threads and reports the seats won by each candidate name. --shard saves the files as one partial\n"
+        + "tally of the votes for each distinct ranking instead of counting them. Partial tallies from each site can be\n"
+        + "counted together with --merge or combined into a larger partial tally with --shard. --metrics registers\n"
+        + "metrics of loading and counting as a JMX MBean and writes them to stderr every SECONDS and at the end.";
+    private final ArrayList<String> files = new ArrayList<>();
+    private String output = null;
+    private String candidatesPath = null;
+    private boolean collapse = false;
+    private boolean merge = false;
+    private boolean bulk = false;
+    private boolean constituencies = false;
+    private String shard = null;
+    private int threads = 1;
+    private Long seed = null;
+    private boolean lowestId = false;
+    private int tieRuns = 0;
+    private int metricsPeriod = 0;
+    private CountMetrics metrics = null;
+    
+    /**
+     * Runs the counter with command line arguments.
+     * @param args The command line arguments.
+     * @return The exit status (0 if every election was counted).
+     */
+    public static int run(String[] args) {
+        HeadlessCounter counter = new HeadlessCounter();
+        try {
+            counter.parseArguments(args);
+        } catch (Exception ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        
+        // Records metrics for every model when they are asked for.
+        if (counter.metricsPeriod > 0) {
+            counter.metrics = new CountMetrics();
+            try {
+                counter.metrics.register("headless");
+            } catch (JMException ex) {
+                System.err.println("Metrics could not be registered: " + ex.getMessage());
+            }
+            counter.metrics.startLogging(counter.metricsPeriod, System.err);
+        }
+        
+        // Writes the report to the output file or stdout.
+        try (PrintStream out = counter.output == null ? new PrintStream(System.out, true) : new PrintStream(new FileOutputStream(counter.output), false, "UTF-8")) {
+            return counter.countAll(out);
+        } catch (IOException ex) {
+            System.err.println(ex.getMessage());
+            return 1;
+        } finally {
+            if (counter.metrics != null) {
+                counter.metrics.stopLogging();
+                System.err.println(counter.metrics.format());
+            }
+        }
+    }
+    
+    /**
+     * Parses the command line arguments into options and files.
+     * @param args The command line arguments.
+     * @throws Exception If the arguments are invalid.
+     */
+    private void parseArguments(String[] args) throws Exception {
+        for (int index = 0; index < args.length; index++) {
+            String arg = args[index];
+            if (arg.equals("--output") && index + 1 < args.length) {
+                output = args[++index];
+            } else if (arg.equals("--shard") && index + 1 < args.length) {
+                shard = args[++index];
+            } else if (arg.equals("--candidates") && index + 1 < args.length) {
+                candidatesPath = args[++index];
+            } else if (arg.equals("--threads") && index + 1 < args.length) {
+                threads = Integer.parseInt(args[++index]);
+                if (threads < 1) {
+                    throw new Exception("The number of threads must be at least 1.");
+                }
+            } else if (arg.equals("--seed") && index + 1 < args.length) {
+                seed = Long.parseLong(args[++index]);
+            } else if (arg.equals("--tie-runs") && index + 1 < args.length) {
+                tieRuns = Integer.parseInt(args[++index]);
+                if (tieRuns < 1) {
+                    throw new Exception("The number of tie runs must be at least 1.");
+                }
+            } else if (arg.equals("--metrics") && index + 1 < args.length) {
+                metricsPeriod = Integer.parseInt(args[++index]);
+                if (metricsPeriod < 1) {
+                    throw new Exception("The metrics period must be at least 1 second.");
+                }
+            } else if (arg.equals("--lowest-id")) {
+                lowestId = true;
+            } else if (arg.equals("--collapse")) {
+                collapse = true;
+            } else if (arg.equals("--merge")) {
+                merge = true;
+            } else if (arg.equals("--constituencies")) {
+                constituencies = true;
+            } else if (arg.equals("--bulk")) {
+                bulk = true;
+            } else if (arg.startsWith("--")) {
+                throw new Exception("Unknown option " + arg + ".");
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.isEmpty()) {
+            throw new Exception("No ballot files given.");
+        } else if (constituencies && (merge || tieRuns > 0)) {
+            throw new Exception("Constituencies cannot be merged or have their ties analysed.");
+        } else if (shard != null && (merge || constituencies || tieRuns > 0)) {
+            throw new Exception("A shard cannot be counted.");
+        }
+    }
+    
+    /**
+     * Counts the elections in the files.
+     * @param out The stream to write the report to.
+     * @return The exit status (0 if every election was counted).
+     */
+    private int countAll(PrintStream out) {
+        int status = 0;
+        long start = System.nanoTime();
+        
+        // Counts all of the files as one election or each of them separately.
+        if (shard != null) {
+            status = saveShard(out);
+        } else if (constituencies) {
+            status = countConstituencies(out);
+        } else if (merge) {
+            status = count(files, out);
+        } else {
+            for (String file : files) {
+                ArrayList<String> election = new ArrayList<>();
+                election.add(file);
+                status = Math.max(status, count(election, out));
+            }
+        }
+        
+        out.println("Total time: " + formatMillis(System.nanoTime() - start));
+        return status;
+    }
+    
+    /**
+     * Counts each file as a constituency on the scheduler's threads and reports the seats.
+     * @param out The stream to write the report to.
+     * @return The exit status (0 if every constituency was counted).
+     */
+    private int countConstituencies(PrintStream out) {
+        // Lets each constituency use an equal share of the heap, since they take turns and are all loaded at once.
+        ElectionScheduler scheduler = new ElectionScheduler(threads, Runtime.getRuntime().maxMemory() / Math.max(files.size(), 1));
+        try {
+            for (String path : files) {
+                scheduler.addElection(path, createModel(), (model) -> loadFiles(model, Collections.singletonList(path)));
+            }
+        } catch (Exception ex) {
+            out.println("Error: " + ex.getMessage());
+            return 1;
+        }
+        scheduler.start();
+        try {
+            scheduler.awaitCompletion();
+        } catch (InterruptedException ex) {
+            out.println("Error: Counting was interrupted.");
+            return 1;
+        }
+        
+        // Reports each constituency in the order given, then the seats won.
+        int status = 0;
+        for (ElectionScheduler.Election election : scheduler.getElections()) {
+            if (election.getState() == ElectionScheduler.State.FAILED) {
+                out.println(election.getName() + ": Error: " + election.getError());
+                status = 1;
+            } else {
+                String winner = election.getWinnerName();
+                out.println(election.getName() + ": " + (winner == null ? "none" : winner) + " after " + election.getRoundCount() + " rounds");
+            }
+        }
+        StringBuilder line = new StringBuilder("Seats:");
+        for (Map.Entry<String, Integer> seats : scheduler.getSeats().entrySet()) {
+            line.append(' ').append(seats.getKey()).append('=').append(seats.getValue());
+        }
+        out.println(line);
+        return status;
+    }
+    
+    /**
+     * Loads the files into a collapsing model and saves its distinct rankings and their weights as a partial tally.
+     * @param out The stream to write the report to.
+     * @return The exit status (0 if the partial tally was saved).
+     */
+    private int saveShard(PrintStream out) {
+        long start = System.nanoTime();
+        try {
+            AVModel model = createModel();
+            model.setCollapsing(true);
+            loadFiles(model, files);
+            model.saveVotes(shard);
+            BallotStore ballots = model.getBallots();
+            out.println("Saved " + ballots.getTotalWeight() + " votes as " + ballots.size() + " rankings to " + shard + " in " + formatMillis(System.nanoTime() - start));
+            return 0;
+        } catch (Exception ex) {
+            out.println("Error: " + ex.getMessage());
+            return 1;
+        }
+    }
+    
+    /**
+     * Creates a model for an election with the options.
+     * @return The model.
+     * @throws FileNotFoundException
+     * @throws Exception If the candidates file is invalid.
+     */
+    private AVModel createModel() throws FileNotFoundException, Exception {
+        AVModel model = candidatesPath == null ? new AVModel() : new AVModel(CandidateRegistry.load(candidatesPath));
+        model.setCollapsing(collapse);
+        model.setBulkExclusion(bulk);
+        model.setMetrics(metrics);
+        if (lowestId) {
+            model.setTieBreaker(new LowestIdTieBreaker());
+        } else if (seed != null) {
+            model.setTieBreaker(new RandomTieBreaker(seed));
+        }
+        return model;
+    }
+    
+    /**
+     * Loads CSV and binary ballot files into a model.
+     * @param model The model to load the votes into.
+     * @param paths The paths of the ballot files.
+     * @throws FileNotFoundException
+     * @throws Exception If a file is invalid.
+     */
+    private static void loadFiles(AVModel model, List<String> paths) throws FileNotFoundException, Exception {
+        for (String path : paths) {
+            if (path.endsWith(".avb")) {
+                model.loadBinaryVotes(path);
+            } else {
+                model.loadVotes(path);
+            }
+        }
+    }
+    
+    /**
+     * Loads files into a model and counts it to completion.
+     * @param paths The paths of the ballot files for the election.
+     * @param out The stream to write the report to.
+     * @return The exit status (0 if the election was counted).
+     */
+    private int count(ArrayList<String> paths, PrintStream out) {
+        out.println("Election: " + String.join(", ", paths));
+        AVModel model;
+        
+        // Loads the candidates and the ballot files.
+        long loadStart = System.nanoTime();
+        try {
+            model = createModel();
+            model.setParallelism(threads);
+            loadFiles(model, paths);
+        } catch (Exception ex) {
+            out.println("Error: " + ex.getMessage());
+            out.println();
+            return 1;
+        }
+        ArrayList<Candidate> candidates = model.getCandidates();
+        out.println("Loaded " + model.getBallots().getTotalWeight() + " votes in " + formatMillis(System.nanoTime() - loadStart));
+        
+        // Counts every round and reports them from the history.
+        long countStart = System.nanoTime();
+        RoundHistory history;
+        try {
+            history = model.runToCompletion();
+        } catch (IOException ex) {
+            out.println("Error: " + ex.getMessage());
+            out.println();
+            return 1;
+        }
+        long countTime = System.nanoTime() - countStart;
+        for (int round = 1; round <= history.getRoundCount(); round++) {
+            printRound(history, round, candidates, out);
+        }
+        
+        int winner = history.getLeaderId();
+        out.println("Winner: " + (winner == -1 ? "none" : candidates.get(winner).getName()));
+        out.println("Counted " + history.getRoundCount() + " rounds in " + formatMillis(countTime));
+        
+        // Reruns the count with different tie breaker seeds.
+        if (tieRuns > 0) {
+            long analysisStart = System.nanoTime();
+            TieAnalysis analysis = model.analyseTies(tieRuns, seed == null ? 0 : seed);
+            StringBuilder line = new StringBuilder("Tie analysis of " + analysis.getRuns() + " runs:");
+            for (int id = 0; id < candidates.size(); id++) {
+                line.append(' ').append(candidates.get(id).getName()).append('=').append(analysis.getWins(id));
+            }
+            if (analysis.getFirstTieRound() == -1) {
+                line.append(" (no ties)");
+            } else {
+                line.append(" (first tie in round ").append(analysis.getFirstTieRound()).append(')');
+            }
+            out.println(line);
+            out.println("Analysed in " + formatMillis(System.nanoTime() - analysisStart));
+        }
+        out.println();
+        return 0;
+    }
+    
+    /**
+     * Writes the transfers and counts of a round.
+     * @param history The history of the count.
+     * @param round The round (starting at 1).
+     * @param candidates The candidates that were counted.
+     * @param out The stream to write the report to.
+     */
+    private static void printRound(RoundHistory history, int round, ArrayList<Candidate> candidates, PrintStream out) {
+        StringBuilder line = new StringBuilder("Round " + round + ":");
+        int eliminatedCount = history.getEliminatedCount(round);
+        
+        // Describes where the eliminated candidates' votes went.
+        if (eliminatedCount > 0) {
+            line.append(" eliminated ");
+            for (int index = 0; index < eliminatedCount; index++) {
+                line.append(index > 0 ? ", " : "").append(candidates.get(history.getEliminatedId(round, index)).getName());
+            }
+            if (history.isRecount(round)) {
+                line.append(" (recounted with the votes added since the last round);");
+            } else {
+                line.append(" (");
+                for (int id = 0; id < candidates.size(); id++) {
+                    int transfer = history.getTransfer(round, id);
+                    if (transfer > 0) {
+                        line.append(candidates.get(id).getName()).append(" +").append(transfer).append(", ");
+                    }
+                }
+                line.append("exhausted ").append(history.getExhausted(round)).append(");");
+            }
+        }
+        
+        // Lists the counts of the candidates that have not been eliminated by the round.
+        boolean[] eliminated = new boolean[candidates.size()];
+        for (int previous = 1; previous <= round; previous++) {
+            for (int index = 0; index < history.getEliminatedCount(previous); index++) {
+                eliminated[history.getEliminatedId(previous, index)] = true;
+            }
+        }
+        for (int id = 0; id < candidates.size(); id++) {
+            if (!eliminated[id]) {
+                line.append(' ').append(candidates.get(id).getName()).append('=').append(history.getCount(round, id));
+            }
+        }
+        out.println(line);
+    }
+    
+    /**
+     * Formats a duration as milliseconds.
+     * @param nanos The duration in nanoseconds.
+     * @return The formatted duration.
+     */
+    private static String formatMillis(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,14 @@
+package alternatevote;
+
+/**
+ * A deterministic tie breaker that always eliminates the tied candidate with the lowest index.
+ * @author ryansmith
+ */
+public class LowestIdTieBreaker implements TieBreaker {
+    
+    @Override
+    public int choose(int[] tiedIds, int tiedCount) {
+        assert tiedCount >= 1;
+        return tiedIds[0];
+    }
+}
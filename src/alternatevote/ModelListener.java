@@ -0,0 +1,49 @@
+package alternatevote;
+
+/**
+ * A listener for the changes to a model, told only what changed so that views can patch themselves instead of
+ * rebuilding from every ballot. Changes made in a batch are coalesced and delivered once when the batch ends.
+ * Events are delivered on the thread that changed the model, and every method does nothing unless it is overridden.
+ * A listener that updates a view on another thread must copy what it needs before it returns, such as with
+ * AVModel.snapshotBallots, since the model goes on changing.
+ * @author ryansmith
+ */
+public interface ModelListener {
+    /**
+     * Tells the listener that ballots were appended to the store. When the store collapses identical rankings, the
+     * weights of earlier ballots may also have grown.
+     * @param from The index of the first new ballot.
+     * @param to The index after the last new ballot.
+     */
+    default void ballotsAppended(int from, int to) {
+    }
+    
+    /**
+     * Tells the listener that the ballot store was replaced, so every ballot may have changed.
+     */
+    default void ballotsReplaced() {
+    }
+    
+    /**
+     * Tells the listener that counting was reset or started again, so no candidates are eliminated.
+     */
+    default void countReset() {
+    }
+    
+    /**
+     * Tells the listener that a candidate was eliminated before a round.
+     * @param id The index of the candidate.
+     * @param round The round that the candidate's votes were transferred in.
+     */
+    default void candidateEliminated(int id, int round) {
+    }
+    
+    /**
+     * Tells the listener that a round was counted, after any candidateEliminated events for it.
+     * @param history The history of the count, whose counts and transfers for the round are the changes (it is only
+     * safe to read before the listener returns).
+     * @param round The round (the last one when rounds were counted in a batch).
+     */
+    default void roundCounted(RoundHistory history, int round) {
+    }
+}
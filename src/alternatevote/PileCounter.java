@@ -0,0 +1,394 @@
+package alternatevote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A counter that keeps the ballots for each continuing candidate in a pile so that only the ballots of
+ * an eliminated candidate are looked at again when they are redistributed. Weighted ballots from a collapsing
+ * store are counted and moved as whole groups.
+ *
+ * With a parallelism above 1, the ballots being placed are split into disjoint ranges that are tallied by worker
+ * threads into their own primitive counts and piles. These are merged in range order, so the counts and the order
+ * of each pile are identical to counting on one thread.
+ *
+ * Each ballot keeps a cursor to the rank of its current choice. Eliminations only ever move a choice to a later rank,
+ * so the cursor only moves forward until the next full count resets it, and finding a ballot's choice costs amortised
+ * constant time however often it is asked for.
+ *
+ * Progress is advanced every PROGRESS_INTERVAL ballots, which is also when a cancelled count stops.
+ * @author ryansmith
+ */
+public class PileCounter {
+    private static final int INITIAL_PILE_CAPACITY = 16;
+    private static final int PROGRESS_INTERVAL = 1 << 14;
+    private BallotStore ballots;
+    private int[][] piles = new int[0][];
+    private int[] pileSizes = new int[0];
+    private int[] counts = new int[0];
+    private boolean[] eliminated = new boolean[0];
+    private short[] cursors = new short[0];
+    private int countedVotes = 0;
+    private int parallelism = 1;
+    private ForkJoinPool pool = null;
+    private Progress progress = new Progress();
+    
+    /**
+     * Sets the number of threads used to tally ballots.
+     * @param parallelism The number of threads (1 counts on the calling thread).
+     * @pre parallelism is at least 1.
+     * @post Later counts and redistributions use the given number of threads.
+     */
+    public void setParallelism(int parallelism) {
+        assert parallelism >= 1;
+        if (pool != null) {
+            pool.shutdown();
+        }
+        this.parallelism = parallelism;
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+    
+    /**
+     * Sets the progress that counting advances.
+     * @param progress The progress.
+     * @pre progress is not null.
+     */
+    public void setProgress(Progress progress) {
+        assert progress != null;
+        this.progress = progress;
+    }
+    
+    /**
+     * Gets the number of threads used to tally ballots.
+     * @return The parallelism.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+     * Counts all of the ballots from scratch.
+     * @param registry The candidates to count ballots for.
+     * @param ballots The ballots to count.
+     * @throws CancellationException If the progress is cancelled (the piles are incomplete).
+     * @pre registry is not null.
+     * @pre ballots is not null.
+     * @post Each ballot is in the pile of its current choice and the candidates' counts match the piles.
+     */
+    public void count(CandidateRegistry registry, BallotStore ballots) {
+        assert registry != null;
+        count(registry.getEliminated(), ballots);
+        registry.setCounts(counts);
+    }
+    
+    /**
+     * Counts all of the ballots from scratch without a registry.
+     * @param eliminatedCandidates Which of the candidates are eliminated (copied).
+     * @param ballots The ballots to count.
+     * @throws CancellationException If the progress is cancelled (the piles are incomplete).
+     * @pre eliminatedCandidates is not null.
+     * @pre ballots is not null.
+     * @post Each ballot is in the pile of its current choice.
+     */
+    public void count(boolean[] eliminatedCandidates, BallotStore ballots) {
+        assert eliminatedCandidates != null;
+        assert ballots != null;
+        int candidateCount = eliminatedCandidates.length;
+        this.ballots = ballots;
+        countedVotes = 0;
+        cursors = new short[ballots.size()];
+        
+        // Starts every candidate with an empty pile.
+        piles = new int[candidateCount][];
+        pileSizes = new int[candidateCount];
+        counts = new int[candidateCount];
+        eliminated = eliminatedCandidates.clone();
+        for (int id = 0; id < candidateCount; id++) {
+            piles[id] = new int[INITIAL_PILE_CAPACITY];
+        }
+        
+        placeAll(null, ballots.size());
+        countedVotes = ballots.size();
+    }
+    
+    /**
+     * Redistributes the ballots in the pile of an eliminated candidate to their next choices.
+     * @param registry The candidates being counted.
+     * @param eliminatedId The index of the candidate that has just been eliminated.
+     * @throws CancellationException If the progress is cancelled (the piles are incomplete).
+     * @pre The candidate at eliminatedId is eliminated.
+     * @post The ballots from the eliminated candidate's pile have been moved to the piles of their next choices.
+     */
+    public void redistribute(CandidateRegistry registry, int eliminatedId) {
+        redistribute(registry, new int[] {eliminatedId}, 1);
+    }
+    
+    /**
+     * Redistributes the ballots in the piles of several candidates eliminated together to their next choices.
+     * @param registry The candidates being counted.
+     * @param eliminatedIds The indexes of the candidates that have just been eliminated.
+     * @param eliminatedCount The number of candidates at the start of eliminatedIds.
+     * @throws CancellationException If the progress is cancelled (the piles are incomplete).
+     * @pre The candidates in eliminatedIds are eliminated.
+     * @post The ballots from the eliminated candidates' piles have been moved to the piles of their next choices.
+     */
+    public void redistribute(CandidateRegistry registry, int[] eliminatedIds, int eliminatedCount) {
+        for (int index = 0; index < eliminatedCount; index++) {
+            assert registry.isEliminated(eliminatedIds[index]);
+        }
+        redistribute(eliminatedIds, eliminatedCount);
+        registry.setCounts(counts);
+    }
+    
+    /**
+     * Eliminates a candidate and redistributes the ballots in their pile without a registry.
+     * @param eliminatedId The index of the candidate to eliminate.
+     * @throws CancellationException If the progress is cancelled (the piles are incomplete).
+     * @post The ballots from the eliminated candidate's pile have been moved to the piles of their next choices.
+     */
+    public void redistribute(int eliminatedId) {
+        redistribute(new int[] {eliminatedId}, 1);
+    }
+    
+    /**
+     * Eliminates several candidates and redistributes the ballots in their piles without a registry. Every candidate
+     * is eliminated before any ballots are moved, so each ballot moves straight to its next continuing choice.
+     * @param eliminatedIds The indexes of the candidates to eliminate.
+     * @param eliminatedCount The number of candidates at the start of eliminatedIds.
+     * @throws CancellationException If the progress is cancelled (the piles are incomplete).
+     * @post The ballots from the eliminated candidates' piles have been moved to the piles of their next choices.
+     */
+    public void redistribute(int[] eliminatedIds, int eliminatedCount) {
+        int[][] oldPiles = new int[eliminatedCount][];
+        int[] oldPileSizes = new int[eliminatedCount];
+        for (int index = 0; index < eliminatedCount; index++) {
+            int id = eliminatedIds[index];
+            oldPiles[index] = piles[id];
+            oldPileSizes[index] = pileSizes[id];
+            eliminated[id] = true;
+            piles[id] = new int[INITIAL_PILE_CAPACITY];
+            pileSizes[id] = 0;
+            counts[id] = 0;
+        }
+        
+        for (int index = 0; index < eliminatedCount; index++) {
+            placeAll(oldPiles[index], oldPileSizes[index]);
+        }
+    }
+    
+    /**
+     * Gets the number of votes in the pile of a candidate.
+     * @param id The index of the candidate.
+     * @return The weight of the pile.
+     */
+    public int getCount(int id) {
+        return id < counts.length ? counts[id] : 0;
+    }
+    
+    /**
+     * Determines if a candidate has been eliminated from the count.
+     * @param id The index of the candidate.
+     * @return True if the candidate is eliminated.
+     */
+    public boolean isEliminated(int id) {
+        return eliminated[id];
+    }
+    
+    /**
+     * Gets the current choice of a counted ballot from its cursor, without moving the cursor so that looking up a
+     * choice never changes the counter.
+     * @param ballot The index of the ballot.
+     * @return The candidate index of the highest continuing preference (-1 if there are none).
+     * @pre ballot is less than the number of counted ballots.
+     */
+    public int getChoiceId(int ballot) {
+        assert ballot < countedVotes;
+        int rank = findChoiceRank(ballot);
+        return rank < ballots.getLength(ballot) ? ballots.getPreference(ballot, rank) : -1;
+    }
+    
+    /**
+     * Gets the number of ballots in the pile of a candidate.
+     * @param id The index of the candidate.
+     * @return The number of ballots (not their weight).
+     */
+    public int getPileSize(int id) {
+        return id < pileSizes.length ? pileSizes[id] : 0;
+    }
+    
+    /**
+     * Gets the ballots that were counted.
+     * @return The ballots (null before the first count).
+     */
+    BallotStore getBallots() {
+        return ballots;
+    }
+    
+    /**
+     * Gets the pile of a candidate, which must not be changed.
+     * @param id The index of the candidate.
+     * @return The ballot indexes (only the first getPileSize(id) are in the pile).
+     */
+    int[] getPile(int id) {
+        return piles[id];
+    }
+    
+    /**
+     * Gets the number of ballots that were counted into the piles.
+     * @return The number of counted ballots.
+     */
+    public int getCountedVotes() {
+        return countedVotes;
+    }
+    
+    /**
+     * Places ballots onto the piles of their current choices, using the worker threads if there are any.
+     * @param source The indexes of the ballots to place (null to place ballots 0 to count - 1).
+     * @param count The number of ballots to place.
+     * @post Each ballot is in its choice's pile unless it has no continuing preferences.
+     */
+    private void placeAll(int[] source, int count) {
+        int rangeCount = pool == null ? 1 : Math.min(parallelism, count);
+        if (rangeCount < 2) {
+            for (int index = 0; index < count; index++) {
+                place(source == null ? index : source[index]);
+                if ((index + 1) % PROGRESS_INTERVAL == 0) {
+                    progress.advance(PROGRESS_INTERVAL);
+                }
+            }
+            progress.advance(count % PROGRESS_INTERVAL);
+            return;
+        }
+        
+        // Tallies disjoint ranges of the ballots on the worker threads.
+        ArrayList<ForkJoinTask<Tally>> tasks = new ArrayList<>();
+        for (int range = 0; range < rangeCount; range++) {
+            int from = (int) ((long) count * range / rangeCount);
+            int to = (int) ((long) count * (range + 1) / rangeCount);
+            tasks.add(pool.submit(() -> tally(source, from, to)));
+        }
+        
+        // Merges the tallies in range order so that the piles keep the same order as on one thread.
+        for (ForkJoinTask<Tally> task : tasks) {
+            Tally tally = task.join();
+            for (int id = 0; id < counts.length; id++) {
+                int size = tally.pileSizes[id];
+                if (size > 0) {
+                    ensurePileCapacity(id, pileSizes[id] + size);
+                    System.arraycopy(tally.piles[id], 0, piles[id], pileSizes[id], size);
+                    pileSizes[id] += size;
+                    counts[id] += tally.counts[id];
+                }
+            }
+        }
+    }
+    
+    /**
+     * Tallies a range of ballots into separate counts and piles without changing the counter.
+     * @param source The indexes of the ballots (null for ballot indexes equal to positions).
+     * @param from The first position in the range.
+     * @param to The position after the last position in the range.
+     * @return The tally of the range.
+     */
+    private Tally tally(int[] source, int from, int to) {
+        Tally tally = new Tally(counts.length);
+        for (int index = from; index < to; index++) {
+            int ballot = source == null ? index : source[index];
+            int choice = getChoice(ballot);
+            if (choice != -1) {
+                tally.add(choice, ballot, ballots.getWeight(ballot));
+            }
+            if ((index + 1 - from) % PROGRESS_INTERVAL == 0) {
+                progress.advance(PROGRESS_INTERVAL);
+            }
+        }
+        progress.advance((to - from) % PROGRESS_INTERVAL);
+        return tally;
+    }
+    
+    /**
+     * Places a ballot onto the pile of its current choice.
+     * @param ballot The index of the ballot to place.
+     * @post The ballot is in its choice's pile unless it has no continuing preferences.
+     */
+    private void place(int ballot) {
+        int choice = getChoice(ballot);
+        if (choice != -1) {
+            ensurePileCapacity(choice, pileSizes[choice] + 1);
+            piles[choice][pileSizes[choice]++] = ballot;
+            counts[choice] += ballots.getWeight(ballot);
+        }
+    }
+    
+    /**
+     * Ensures that a candidate's pile can hold a number of ballots.
+     * @param id The index of the candidate.
+     * @param capacity The number of ballots.
+     * @post The pile can hold capacity ballots.
+     */
+    private void ensurePileCapacity(int id, int capacity) {
+        if (capacity > piles[id].length) {
+            piles[id] = Arrays.copyOf(piles[id], Math.max(capacity, piles[id].length * 2));
+        }
+    }
+    
+    /**
+     * Gets the current choice of a ballot, moving its cursor past any eliminated preferences.
+     * @param ballot The index of the ballot.
+     * @return The candidate index of the highest continuing preference (-1 if there are none).
+     * @post The ballot's cursor is at the rank of the choice (or its length if there is none).
+     */
+    private int getChoice(int ballot) {
+        int rank = findChoiceRank(ballot);
+        cursors[ballot] = (short) rank;
+        return rank < ballots.getLength(ballot) ? ballots.getPreference(ballot, rank) : -1;
+    }
+    
+    /**
+     * Finds the rank of a ballot's current choice from its cursor.
+     * @param ballot The index of the ballot.
+     * @return The rank of the highest continuing preference (the ballot's length if there are none).
+     */
+    private int findChoiceRank(int ballot) {
+        int length = ballots.getLength(ballot);
+        int rank = cursors[ballot] & 0xFFFF;
+        while (rank < length && eliminated[ballots.getPreference(ballot, rank)]) {
+            rank += 1;
+        }
+        return rank;
+    }
+    
+    /**
+     * The counts and piles tallied by one worker thread.
+     */
+    private static class Tally {
+        private final int[][] piles;
+        private final int[] pileSizes;
+        private final int[] counts;
+        
+        private Tally(int candidateCount) {
+            piles = new int[candidateCount][];
+            pileSizes = new int[candidateCount];
+            counts = new int[candidateCount];
+        }
+        
+        /**
+         * Adds a ballot to a candidate's pile.
+         * @param id The index of the candidate.
+         * @param ballot The index of the ballot.
+         * @param weight The number of votes the ballot stands for.
+         */
+        private void add(int id, int ballot, int weight) {
+            if (piles[id] == null) {
+                piles[id] = new int[INITIAL_PILE_CAPACITY];
+            } else if (pileSizes[id] == piles[id].length) {
+                piles[id] = Arrays.copyOf(piles[id], piles[id].length * 2);
+            }
+            piles[id][pileSizes[id]++] = ballot;
+            counts[id] += weight;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package alternatevote;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the progress of loading or counting ballots so that it can be reported to a listener and cancelled from
+ * another thread. Loaders and counters advance it every few thousand ballots, so the listener is not called for
+ * every ballot.
+ * @author ryansmith
+ */
+public class Progress {
+    private final AtomicLong processed = new AtomicLong();
+    private volatile int round = 0;
+    private volatile long total = 0;
+    private volatile boolean cancelled = false;
+    private volatile Listener listener = null;
+    
+    /**
+     * A listener for progress, which may be called from any thread.
+     */
+    public interface Listener {
+        /**
+         * Reports progress.
+         * @param round The round being counted (0 while loading).
+         * @param processed The number of ballots processed so far.
+         * @param total The number of ballots to process (-1 if it is not known).
+         */
+        void progressed(int round, long processed, long total);
+    }
+    
+    /**
+     * Sets the listener for progress.
+     * @param listener The listener (null for none).
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Starts tracking a new task.
+     * @param round The round being counted (0 while loading).
+     * @param total The number of ballots to process (-1 if it is not known).
+     * @post No ballots have been processed. A cancellation that has not stopped a task yet is kept, so that it stops
+     * this one.
+     */
+    public void start(int round, long total) {
+        this.round = round;
+        this.total = total;
+        processed.set(0);
+        report(0);
+    }
+    
+    /**
+     * Advances the progress of the task.
+     * @param ballots The number of ballots processed since the last advance.
+     * @throws CancellationException If the task has been cancelled.
+     * @post The listener has been told about the progress.
+     */
+    public void advance(long ballots) {
+        if (cancelled) {
+            throw new CancellationException("Cancelled.");
+        }
+        report(processed.addAndGet(ballots));
+    }
+    
+    /**
+     * Requests that the current task stops at its next advance, or the next task if none is running.
+     * @post The task is cancelled.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    /**
+     * Clears the cancellation once the task that it stopped has finished, so that it does not stop the next task.
+     * @post The task is not cancelled.
+     */
+    public void clearCancel() {
+        cancelled = false;
+    }
+    
+    /**
+     * Determines if the current task has been cancelled.
+     * @return True if it has been cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    /**
+     * Reports progress to the listener.
+     * @param count The number of ballots processed so far.
+     */
+    private void report(long count) {
+        Listener current = listener;
+        if (current != null) {
+            current.progressed(round, count, total);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package alternatevote;
+
+import java.util.Random;
+
+/**
+ * A tie breaker that eliminates one of the tied candidates at random. Given a seed, the same ties are always broken
+ * the same way so that counts can be reproduced.
+ * @author ryansmith
+ */
+public class RandomTieBreaker implements TieBreaker {
+    private final Random random;
+    
+    /**
+     * Creates a tie breaker that is different every time.
+     */
+    public RandomTieBreaker() {
+        random = new Random();
+    }
+    
+    /**
+     * Creates a tie breaker that breaks ties in the same way for the same seed.
+     * @param seed The seed.
+     */
+    public RandomTieBreaker(long seed) {
+        random = new Random(seed);
+    }
+    
+    @Override
+    public int choose(int[] tiedIds, int tiedCount) {
+        assert tiedCount >= 1;
+        return tiedIds[random.nextInt(tiedCount)];
+    }
+}
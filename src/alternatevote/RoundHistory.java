@@ -0,0 +1,210 @@
+package alternatevote;
+
+import java.util.Arrays;
+
+/**
+ * A compact record of every round of a count. The counts of each round and the transfers from the candidates
+ * eliminated before it are kept in flat arrays (one row of candidate counts per round), so recording a round only
+ * copies a few ints and reading the history never recounts ballots. Each candidate is eliminated at most once, so the
+ * eliminated candidates of every round share one array, with the end of each round's candidates recorded per round.
+ *
+ * The transfers of a round are the votes that moved from the eliminated candidates to each continuing candidate,
+ * followed by the votes that were exhausted because they had no continuing preferences. A round that recounted every
+ * ballot, because votes were added since the round before it, has no transfers: the change in the counts includes the
+ * new votes, so it does not show where the eliminated candidates' votes went.
+ * @author ryansmith
+ */
+public class RoundHistory {
+    private static final int INITIAL_ROUNDS = 8;
+    private final int candidateCount;
+    private int[] counts;
+    private int[] transfers;
+    private final int[] eliminatedIds;
+    private int[] eliminationEnds;
+    private boolean[] recounts;
+    private int roundCount = 0;
+    
+    /**
+     * Creates an empty history.
+     * @param candidateCount The number of candidates being counted.
+     * @pre candidateCount is not negative.
+     */
+    public RoundHistory(int candidateCount) {
+        assert candidateCount >= 0;
+        this.candidateCount = candidateCount;
+        counts = new int[INITIAL_ROUNDS * candidateCount];
+        transfers = new int[INITIAL_ROUNDS * (candidateCount + 1)];
+        eliminatedIds = new int[candidateCount];
+        eliminationEnds = new int[INITIAL_ROUNDS];
+        recounts = new boolean[INITIAL_ROUNDS];
+    }
+    
+    /**
+     * Records the counts of the round that has just been counted.
+     * @param newEliminatedIds The indexes of the candidates eliminated before the round.
+     * @param eliminatedCount The number of eliminated candidates at the start of newEliminatedIds (0 for none).
+     * @param registry The candidates with the counts of the round.
+     * @param recounted True if the round recounted every ballot rather than transferring the eliminated candidates'.
+     * @pre registry has candidateCount candidates.
+     * @post The round is the last round in the history, with no transfers if it was recounted.
+     */
+    void addRound(int[] newEliminatedIds, int eliminatedCount, CandidateRegistry registry, boolean recounted) {
+        assert registry.size() == candidateCount;
+        ensureCapacity(roundCount + 1);
+        int row = roundCount * candidateCount;
+        int transferRow = roundCount * (candidateCount + 1);
+        int start = roundCount == 0 ? 0 : eliminationEnds[roundCount - 1];
+        System.arraycopy(registry.getCounts(), 0, counts, row, candidateCount);
+        System.arraycopy(newEliminatedIds, 0, eliminatedIds, start, eliminatedCount);
+        eliminationEnds[roundCount] = start + eliminatedCount;
+        recounts[roundCount] = recounted;
+        Arrays.fill(transfers, transferRow, transferRow + candidateCount + 1, 0);
+        
+        // Works out the transfers from the change in each continuing candidate's count.
+        if (roundCount > 0 && eliminatedCount > 0 && !recounted) {
+            int previousRow = row - candidateCount;
+            int remaining = 0;
+            for (int index = 0; index < eliminatedCount; index++) {
+                remaining += counts[previousRow + newEliminatedIds[index]];
+            }
+            for (int id = 0; id < candidateCount; id++) {
+                if (!registry.isEliminated(id)) {
+                    int transfer = counts[row + id] - counts[previousRow + id];
+                    transfers[transferRow + id] = transfer;
+                    remaining -= transfer;
+                }
+            }
+            transfers[transferRow + candidateCount] = remaining;
+        }
+        roundCount += 1;
+    }
+    
+    /**
+     * Gets the number of rounds that have been counted.
+     * @return The number of rounds.
+     */
+    public int getRoundCount() {
+        return roundCount;
+    }
+    
+    /**
+     * Gets the number of candidates being counted.
+     * @return The number of candidates.
+     */
+    public int getCandidateCount() {
+        return candidateCount;
+    }
+    
+    /**
+     * Gets the count of a candidate in a round.
+     * @param round The round (starting at 1).
+     * @param id The index of the candidate.
+     * @return The count (0 once the candidate has been eliminated).
+     * @pre round is between 1 and the number of rounds.
+     */
+    public int getCount(int round, int id) {
+        assert round >= 1 && round <= roundCount;
+        return counts[(round - 1) * candidateCount + id];
+    }
+    
+    /**
+     * Gets the number of candidates that were eliminated before a round.
+     * @param round The round (starting at 1).
+     * @return The number of eliminated candidates (more than 1 when candidates were excluded in bulk).
+     * @pre round is between 1 and the number of rounds.
+     */
+    public int getEliminatedCount(int round) {
+        assert round >= 1 && round <= roundCount;
+        return eliminationEnds[round - 1] - (round == 1 ? 0 : eliminationEnds[round - 2]);
+    }
+    
+    /**
+     * Gets a candidate that was eliminated before a round.
+     * @param round The round (starting at 1).
+     * @param index The position of the candidate among the round's eliminated candidates.
+     * @return The index of the eliminated candidate.
+     * @pre round is between 1 and the number of rounds.
+     * @pre index is less than the round's number of eliminated candidates.
+     */
+    public int getEliminatedId(int round, int index) {
+        assert index < getEliminatedCount(round);
+        return eliminatedIds[eliminationEnds[round - 1] - getEliminatedCount(round) + index];
+    }
+    
+    /**
+     * Gets the first candidate that was eliminated before a round.
+     * @param round The round (starting at 1).
+     * @return The index of the eliminated candidate (-1 if there was none).
+     * @pre round is between 1 and the number of rounds.
+     */
+    public int getEliminatedId(int round) {
+        return getEliminatedCount(round) == 0 ? -1 : getEliminatedId(round, 0);
+    }
+    
+    /**
+     * Determines if a round recounted every ballot because votes were added since the round before it.
+     * @param round The round (starting at 1).
+     * @return True if the round was recounted, so it has no transfers.
+     * @pre round is between 1 and the number of rounds.
+     */
+    public boolean isRecount(int round) {
+        assert round >= 1 && round <= roundCount;
+        return recounts[round - 1];
+    }
+    
+    /**
+     * Gets the votes transferred to a candidate from the candidates eliminated before a round.
+     * @param round The round (starting at 1).
+     * @param id The index of the candidate receiving the votes.
+     * @return The number of votes transferred (0 if the round was recounted).
+     * @pre round is between 1 and the number of rounds.
+     */
+    public int getTransfer(int round, int id) {
+        assert round >= 1 && round <= roundCount;
+        return transfers[(round - 1) * (candidateCount + 1) + id];
+    }
+    
+    /**
+     * Gets the votes from the candidates eliminated before a round that had no continuing preferences.
+     * @param round The round (starting at 1).
+     * @return The number of exhausted votes (0 if the round was recounted).
+     * @pre round is between 1 and the number of rounds.
+     */
+    public int getExhausted(int round) {
+        return getTransfer(round, candidateCount);
+    }
+    
+    /**
+     * Gets the candidate with the most votes in the last round.
+     * @return The index of the candidate (-1 if there are no rounds or votes).
+     */
+    public int getLeaderId() {
+        int leader = -1;
+        int highestCount = 0;
+        if (roundCount > 0) {
+            int row = (roundCount - 1) * candidateCount;
+            for (int id = 0; id < candidateCount; id++) {
+                if (counts[row + id] > highestCount) {
+                    highestCount = counts[row + id];
+                    leader = id;
+                }
+            }
+        }
+        return leader;
+    }
+    
+    /**
+     * Ensures that the history can hold a number of rounds.
+     * @param rounds The number of rounds.
+     * @post The arrays can hold rounds rounds.
+     */
+    private void ensureCapacity(int rounds) {
+        if (rounds > eliminationEnds.length) {
+            int capacity = Math.max(rounds, eliminationEnds.length * 2);
+            counts = Arrays.copyOf(counts, capacity * candidateCount);
+            transfers = Arrays.copyOf(transfers, capacity * (candidateCount + 1));
+            eliminationEnds = Arrays.copyOf(eliminationEnds, capacity);
+            recounts = Arrays.copyOf(recounts, capacity);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package alternatevote;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * An analysis of how ties change the result of a count. The count is rerun many times with a differently seeded
+ * random tie breaker each time, and the number of runs won by each candidate is recorded.
+ *
+ * The rounds before the first tie are the same in every run, so they are only counted once. The ballots that are
+ * left at the first tie are then collapsed into weighted rankings of the continuing candidates, which every run
+ * shares and counts on its own worker thread without candidate objects.
+ * @author ryansmith
+ */
+public class TieAnalysis {
+    private final int[] wins;
+    private final int runs;
+    private final int firstTieRound;
+    
+    private TieAnalysis(int[] wins, int runs, int firstTieRound) {
+        this.wins = wins;
+        this.runs = runs;
+        this.firstTieRound = firstTieRound;
+    }
+    
+    /**
+     * Reruns a count with different tie breaker seeds.
+     * @param ballots The ballots to count (they are not changed).
+     * @param candidateCount The number of candidates.
+     * @param runs The number of times to run the count.
+     * @param seed The seed that each run's seed is mixed from.
+     * @param parallelism The number of threads to run the counts on.
+     * @return The analysis.
+     * @pre ballots is not null.
+     * @pre runs is at least 1.
+     * @pre parallelism is at least 1.
+     */
+    public static TieAnalysis analyse(BallotStore ballots, int candidateCount, int runs, long seed, int parallelism) {
+        assert ballots != null;
+        assert runs >= 1;
+        assert parallelism >= 1;
+        int[] wins = new int[candidateCount];
+        int[] tiedIds = new int[candidateCount];
+        
+        // Counts the rounds before the first tie once because they are the same in every run.
+        PileCounter counter = new PileCounter();
+        counter.count(new boolean[candidateCount], ballots);
+        int round = 1;
+        while (!isDecided(counter, candidateCount)) {
+            if (findLowScorers(counter, candidateCount, tiedIds) > 1) {
+                break;
+            }
+            counter.redistribute(tiedIds[0]);
+            round += 1;
+        }
+        
+        // Gives every run to the same winner when there are no ties.
+        if (isDecided(counter, candidateCount)) {
+            int winner = getLeader(counter, candidateCount);
+            if (winner != -1) {
+                wins[winner] = runs;
+            }
+            return new TieAnalysis(wins, runs, -1);
+        }
+        
+        // Shares the ballots that are left between the runs, which are split into ranges for the worker threads.
+        BallotStore remaining = collapse(counter, candidateCount);
+        boolean[] eliminated = new boolean[candidateCount];
+        for (int id = 0; id < candidateCount; id++) {
+            eliminated[id] = counter.isEliminated(id);
+        }
+        int rangeCount = Math.min(parallelism, runs);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            ArrayList<ForkJoinTask<int[]>> tasks = new ArrayList<>();
+            for (int range = 0; range < rangeCount; range++) {
+                int from = (int) ((long) runs * range / rangeCount);
+                int to = (int) ((long) runs * (range + 1) / rangeCount);
+                tasks.add(pool.submit(() -> runAll(remaining, eliminated, seed, from, to)));
+            }
+            for (ForkJoinTask<int[]> task : tasks) {
+                int[] rangeWins = task.join();
+                for (int id = 0; id < candidateCount; id++) {
+                    wins[id] += rangeWins[id];
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return new TieAnalysis(wins, runs, round);
+    }
+    
+    /**
+     * Gets the number of runs.
+     * @return The number of runs.
+     */
+    public int getRuns() {
+        return runs;
+    }
+    
+    /**
+     * Gets the number of runs won by a candidate.
+     * @param id The index of the candidate.
+     * @return The number of runs won.
+     */
+    public int getWins(int id) {
+        return wins[id];
+    }
+    
+    /**
+     * Gets the round that ended with the first tie for the lowest count.
+     * @return The round (-1 if there were no ties, so every run had the same result).
+     */
+    public int getFirstTieRound() {
+        return firstTieRound;
+    }
+    
+    /**
+     * Runs a range of the counts.
+     * @param remaining The ballots left at the first tie.
+     * @param eliminated Which candidates were eliminated before the first tie.
+     * @param seed The seed that each run's seed is mixed from.
+     * @param from The first run in the range.
+     * @param to The run after the last run in the range.
+     * @return The number of runs in the range won by each candidate.
+     */
+    private static int[] runAll(BallotStore remaining, boolean[] eliminated, long seed, int from, int to) {
+        int candidateCount = eliminated.length;
+        int[] wins = new int[candidateCount];
+        int[] tiedIds = new int[candidateCount];
+        PileCounter counter = new PileCounter();
+        for (int run = from; run < to; run++) {
+            TieBreaker tieBreaker = new RandomTieBreaker(mixSeed(seed, run));
+            counter.count(eliminated, remaining);
+            while (!isDecided(counter, candidateCount)) {
+                int tiedCount = findLowScorers(counter, candidateCount, tiedIds);
+                counter.redistribute(tieBreaker.choose(tiedIds, tiedCount));
+            }
+            int winner = getLeader(counter, candidateCount);
+            if (winner != -1) {
+                wins[winner] += 1;
+            }
+        }
+        return wins;
+    }
+    
+    /**
+     * Mixes the seed of the analysis with the number of a run, so that each run has an independent stream of random
+     * numbers (consecutive seeds give java.util.Random correlated first draws).
+     * @param seed The seed of the analysis.
+     * @param run The number of the run.
+     * @return The seed of the run, from the SplitMix64 finalizer.
+     */
+    static long mixSeed(long seed, int run) {
+        long mixed = seed + (run + 1) * 0x9E3779B97F4A7C15L;
+        mixed = (mixed ^ (mixed >>> 30)) * 0xBF58476D1CE4E5B9L;
+        mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+        return mixed ^ (mixed >>> 31);
+    }
+    
+    /**
+     * Collapses the ballots in the piles into weighted rankings of the continuing candidates.
+     * @param counter The counter at the first tie.
+     * @param candidateCount The number of candidates.
+     * @return A collapsing store of the rankings.
+     */
+    private static BallotStore collapse(PileCounter counter, int candidateCount) {
+        BallotStore ballots = counter.getBallots();
+        BallotStore remaining = new BallotStore(true);
+        int[] preferences = new int[candidateCount];
+        for (int id = 0; id < candidateCount; id++) {
+            int[] pile = counter.getPile(id);
+            for (int index = 0; index < counter.getPileSize(id); index++) {
+                int ballot = pile[index];
+                int length = 0;
+                for (int rank = 0; rank < ballots.getLength(ballot); rank++) {
+                    int preference = ballots.getPreference(ballot, rank);
+                    if (!counter.isEliminated(preference)) {
+                        preferences[length++] = preference;
+                    }
+                }
+                remaining.add(preferences, length, ballots.getWeight(ballot));
+            }
+        }
+        return remaining;
+    }
+    
+    /**
+     * Determines if a count has a result, matching AVModel.hasStarted().
+     * @param counter The counter.
+     * @param candidateCount The number of candidates.
+     * @return True if a candidate has a majority or there are no votes.
+     */
+    private static boolean isDecided(PileCounter counter, int candidateCount) {
+        int highestCount = 0;
+        int totalCount = 0;
+        for (int id = 0; id < candidateCount; id++) {
+            if (!counter.isEliminated(id)) {
+                totalCount += counter.getCount(id);
+                highestCount = Math.max(highestCount, counter.getCount(id));
+            }
+        }
+        return totalCount < 1 || highestCount * 2 > totalCount;
+    }
+    
+    /**
+     * Finds the continuing candidates with the lowest count.
+     * @param counter The counter.
+     * @param candidateCount The number of candidates.
+     * @param tiedIds The array to put the indexes of the low scorers in (in ascending order).
+     * @return The number of low scorers.
+     */
+    private static int findLowScorers(PileCounter counter, int candidateCount, int[] tiedIds) {
+        int tiedCount = 0;
+        int lowestCount = Integer.MAX_VALUE;
+        for (int id = 0; id < candidateCount; id++) {
+            if (!counter.isEliminated(id)) {
+                int count = counter.getCount(id);
+                if (count < lowestCount) {
+                    tiedCount = 0;
+                    lowestCount = count;
+                }
+                if (count == lowestCount) {
+                    tiedIds[tiedCount++] = id;
+                }
+            }
+        }
+        return tiedCount;
+    }
+    
+    /**
+     * Gets the continuing candidate with the most votes.
+     * @param counter The counter.
+     * @param candidateCount The number of candidates.
+     * @return The index of the candidate (-1 if there are no votes).
+     */
+    private static int getLeader(PileCounter counter, int candidateCount) {
+        int leader = -1;
+        for (int id = 0; id < candidateCount; id++) {
+            if (!counter.isEliminated(id) && counter.getCount(id) > 0 && (leader == -1 || counter.getCount(id) > counter.getCount(leader))) {
+                leader = id;
+            }
+        }
+        return leader;
+    }
+}
@@ -0,0 +1,16 @@
+package alternatevote;
+
+/**
+ * A strategy for choosing which of the candidates tied on the lowest count is eliminated.
+ * @author ryansmith
+ */
+public interface TieBreaker {
+    /**
+     * Chooses the candidate to eliminate from the tied candidates.
+     * @param tiedIds The indexes of the tied candidates in ascending order.
+     * @param tiedCount The number of tied candidates at the start of tiedIds.
+     * @return The index of the candidate to eliminate (one of the tied candidates).
+     * @pre tiedCount is at least 1.
+     */
+    int choose(int[] tiedIds, int tiedCount);
+}
@@ -3,50 +3,81 @@ package alternatevote;
 import java.util.ArrayList;
 
 /**
- * A class for representing and manipulating a vote.
+ * A class for representing and manipulating a vote held in a ballot store. When the vote has been counted, its
+ * choice is read from the counter's cursor instead of scanning its preferences.
  * @author ryansmith
  */
 public class Vote {
-    private final ArrayList<Candidate> preferences;
+    private final BallotStore ballots;
+    private final int index;
+    private final ArrayList<Candidate> candidates;
+    private final PileCounter counter;
     
-    public Vote(ArrayList<Candidate> candidates) {
-        this.preferences = candidates;
+    public Vote(BallotStore ballots, int index, ArrayList<Candidate> candidates) {
+        this(ballots, index, candidates, null);
     }
-
+    
+    Vote(BallotStore ballots, int index, ArrayList<Candidate> candidates, PileCounter counter) {
+        this.ballots = ballots;
+        this.index = index;
+        this.candidates = candidates;
+        this.counter = counter;
+    }
+    
     /**
      * Gets the preferences.
      * @return The preferences.
+     * @pre ballots is not null.
+     * @pre candidates is not null.
      */
     public ArrayList<Candidate> getPreferences() {
+        assert ballots != null;
+        assert candidates != null;
+        int length = ballots.getLength(index);
+        ArrayList<Candidate> preferences = new ArrayList<>(length);
+        
+        for (int rank = 0; rank < length; rank++) {
+            preferences.add(candidates.get(ballots.getPreference(index, rank)));
+        }
+        
         return preferences;
     }
     
     /**
      * Increments the count for the preferred candidate.
+     * @return The candidate that was counted (null if there are no available preferences).
      * @post The highest available preference's vote count has been incremented.
      */
-    public void count() {
+    public Candidate count() {
         Candidate candidate = getChoice();
         if (candidate != null) {
             candidate.incrementCount();
         }
+        return candidate;
     }
-
+    
     /**
      * Gets the current choice.
      * @return The current choice.
-     * @pre preferences is not null.
+     * @pre ballots is not null.
+     * @pre candidates is not null.
      */
     public Candidate getChoice() {
-        assert preferences != null;
-        Candidate candidate = null;
+        assert ballots != null;
+        assert candidates != null;
+        if (counter != null) {
+            int id = counter.getChoiceId(index);
+            return id == -1 ? null : candidates.get(id);
+        }
+        int length = ballots.getLength(index);
         
-        for (int choice = preferences.size() - 1; choice >= 0; choice--) {
-            if (!preferences.get(choice).isEliminated()) {
-                candidate = preferences.get(choice);
+        for (int rank = 0; rank < length; rank++) {
+            Candidate candidate = candidates.get(ballots.getPreference(index, rank));
+            if (!candidate.isEliminated()) {
+                return candidate;
             }
         }
         
-        return candidate;
+        return null;
     }
 }
@@ -0,0 +1,341 @@
+package alternatevote;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread-safe way for many data-entry operators to add votes to one model at the same time. The model itself must
+ * only be changed on one thread, so submitted votes are validated on the operator's thread and appended to one of
+ * several striped buffers, picked by thread so that operators rarely wait for each other. A publishing thread swaps
+ * the buffers out and adds them to the model as one batch on the model's executor.
+ *
+ * Batches are only added between tasks on the model's executor and never once counting has started, so a count
+ * always sees a fixed set of ballots. While counting, the buffers are held: once a buffer is full the operators that
+ * append to it wait until counting has finished and the buffer has been published. Batches that the model fails to
+ * add, such as when its journal cannot be written, are held in the same way and tried again every period, and the
+ * failure is reported to the error listener.
+ * @author ryansmith
+ */
+public class VoteSubmitter implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 12;
+    private static final long PUBLISH_MILLIS = 50;
+    private final AVModel model;
+    private final Executor executor;
+    private final int candidateCount;
+    private final int bufferSize;
+    private final Stripe[] stripes;
+    private final ArrayList<BallotStore> held = new ArrayList<>();
+    private final Thread publisher;
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder publishedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private volatile String lastError = null;
+    private volatile ErrorListener errorListener = null;
+    private volatile Thread modelThread = null;
+    private volatile boolean holding = false;
+    private boolean failing = false;
+    private volatile boolean closed = false;
+    
+    /**
+     * A listener for problems adding batches to the model, which is called on the publishing thread.
+     */
+    public interface ErrorListener {
+        /**
+         * Reports a problem adding a batch, which is held and tried again. It is only called for the first failure
+         * until a batch has been added again, rather than for every retry.
+         * @param message The error message.
+         */
+        void failed(String message);
+    }
+    
+    /**
+     * Creates a submitter that adds batches to a model on its publishing thread, with a stripe for each processor.
+     * @param model The model to add the votes to.
+     * @pre model is not null.
+     */
+    public VoteSubmitter(AVModel model) {
+        this(model, Runnable::run, Runtime.getRuntime().availableProcessors(), DEFAULT_BUFFER_SIZE);
+    }
+    
+    /**
+     * Creates a submitter.
+     * @param model The model to add the votes to.
+     * @param executor The executor that runs the tasks which change the model.
+     * @param stripeCount The number of buffers that operators' threads are spread across.
+     * @param bufferSize The number of votes a buffer holds before it is published early, and before operators wait
+     * for it while counting.
+     * @pre model is not null.
+     * @pre executor is not null.
+     * @pre stripeCount and bufferSize are at least 1.
+     */
+    public VoteSubmitter(AVModel model, Executor executor, int stripeCount, int bufferSize) {
+        assert model != null;
+        assert executor != null;
+        assert stripeCount >= 1 && bufferSize >= 1;
+        this.model = model;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        candidateCount = model.getCandidates().size();
+        stripes = new Stripe[stripeCount];
+        for (int index = 0; index < stripeCount; index++) {
+            stripes[index] = new Stripe(candidateCount);
+        }
+        publisher = new Thread(this::publishAll, "Vote publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+    
+    /**
+     * Submits a vote from any thread.
+     * @param preferenceIds The candidate IDs of the preferences.
+     * @throws Exception If the vote is invalid or the thread is interrupted while waiting for a full buffer.
+     * @pre preferenceIds is not null.
+     * @pre The submitter is not closed.
+     * @post The vote will be added to the model in the next batch.
+     */
+    public void submit(ArrayList<Integer> preferenceIds) throws Exception {
+        assert preferenceIds != null;
+        int[] preferences = new int[preferenceIds.size()];
+        for (int rank = 0; rank < preferences.length; rank++) {
+            preferences[rank] = preferenceIds.get(rank);
+        }
+        submit(preferences, preferences.length);
+    }
+    
+    /**
+     * Submits a vote from any thread.
+     * @param preferenceIds The candidate IDs of the preferences, which are copied.
+     * @param length The number of preferences to take from preferenceIds.
+     * @throws Exception If the vote is invalid or the thread is interrupted while waiting for a full buffer.
+     * @pre preferenceIds is not null.
+     * @pre The submitter is not closed.
+     * @post The vote will be added to the model in the next batch.
+     */
+    public void submit(int[] preferenceIds, int length) throws Exception {
+        assert !closed;
+        Stripe stripe = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+        boolean full;
+        synchronized (stripe) {
+            try {
+                AVModel.validateVote(preferenceIds, length, candidateCount, stripe.selected);
+            } catch (Exception ex) {
+                rejectedCount.increment();
+                throw ex;
+            }
+            
+            // Waits while a full buffer is held back by counting.
+            while (stripe.buffer.size() >= bufferSize && holding && !closed) {
+                stripe.wait();
+            }
+            stripe.buffer.add(preferenceIds, length);
+            full = stripe.buffer.size() >= bufferSize;
+        }
+        submittedCount.increment();
+        
+        // Publishes a full buffer straight away rather than at the next period.
+        if (full) {
+            LockSupport.unpark(publisher);
+        }
+    }
+    
+    /**
+     * Publishes every vote submitted so far, waiting until they have been added to the model.
+     * @return False if counting has started or the model failed to add them, so the votes are held and tried again.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     * @pre The thread is not the one that runs the model's executor, which would wait for itself forever.
+     */
+    public boolean flush() throws InterruptedException {
+        assert Thread.currentThread() != modelThread;
+        return publish();
+    }
+    
+    /**
+     * Sets the listener for problems adding batches to the model.
+     * @param listener The listener (null for none).
+     */
+    public void setErrorListener(ErrorListener listener) {
+        errorListener = listener;
+    }
+    
+    /**
+     * Gets the number of valid votes that have been submitted.
+     * @return The number of votes.
+     */
+    public long getSubmittedCount() {
+        return submittedCount.sum();
+    }
+    
+    /**
+     * Gets the number of votes that have been added to the model.
+     * @return The number of votes.
+     */
+    public long getPublishedCount() {
+        return publishedCount.sum();
+    }
+    
+    /**
+     * Gets the number of votes that were invalid.
+     * @return The number of votes.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+    
+    /**
+     * Gets the last problem adding a batch to the model.
+     * @return The error message (null if there has not been a problem).
+     */
+    public String getLastError() {
+        return lastError;
+    }
+    
+    /**
+     * Stops publishing, dropping the votes that have not been published.
+     * @post The publishing thread stops and waiting operators are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        publisher.interrupt();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Publishes the buffers every period, or sooner when one fills, until the submitter is closed.
+     */
+    private void publishAll() {
+        try {
+            while (!closed) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(PUBLISH_MILLIS));
+                if (Thread.interrupted()) {
+                    return;
+                }
+                publish();
+            }
+        } catch (InterruptedException ex) {
+            // Closing the submitter interrupts the thread.
+        }
+    }
+    
+    /**
+     * Swaps out the buffers that have votes in them and adds them to the model as one batch on its executor. While
+     * counting or a failure holds a batch back, the buffers are left to fill so that operators wait, and once the held
+     * batch has been added the buffers that filled meanwhile are published too.
+     * @return False if counting has started or the model failed to add a batch, so the batches are held.
+     * @throws InterruptedException If the thread is interrupted while waiting for the executor.
+     */
+    private boolean publish() throws InterruptedException {
+        synchronized (held) {
+            while (true) {
+                boolean wasHolding = holding;
+                if (!wasHolding) {
+                    for (Stripe stripe : stripes) {
+                        synchronized (stripe) {
+                            if (stripe.buffer.size() > 0) {
+                                held.add(stripe.buffer);
+                                stripe.buffer = new BallotStore();
+                            }
+                        }
+                    }
+                }
+                if (held.isEmpty()) {
+                    return true;
+                }
+                if (!addHeld()) {
+                    holding = true;
+                    return false;
+                }
+                
+                // Releases the operators waiting for their buffers once the held batches have been added.
+                if (!wasHolding) {
+                    return true;
+                }
+                holding = false;
+                for (Stripe stripe : stripes) {
+                    synchronized (stripe) {
+                        stripe.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Adds the held batches to the model with a single change notification on its executor, unless counting has
+     * started, and removes the ones that were added (the held lock must be held). Adding stops at the first batch
+     * that fails, so the batches stay in order when they are tried again.
+     * @return False if counting has started or a batch failed, so some batches are still held.
+     * @throws InterruptedException If the thread is interrupted while waiting for the executor.
+     */
+    private boolean addHeld() throws InterruptedException {
+        Thread publishing = Thread.currentThread();
+        AtomicInteger added = new AtomicInteger();
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            if (publishing != Thread.currentThread()) {
+                modelThread = Thread.currentThread();
+            }
+            if (model.hasStarted()) {
+                return null;
+            }
+            model.beginChanges();
+            try {
+                for (BallotStore batch : held) {
+                    model.addBallots(batch);
+                    publishedCount.add(batch.size());
+                    added.incrementAndGet();
+                }
+            } finally {
+                model.endChanges();
+            }
+            return null;
+        });
+        executor.execute(task);
+        try {
+            task.get();
+        } catch (ExecutionException ex) {
+            reportError(ex.getCause().getMessage());
+        }
+        held.subList(0, added.get()).clear();
+        if (added.get() > 0) {
+            failing = false;
+        }
+        return held.isEmpty();
+    }
+    
+    /**
+     * Records a problem adding a batch and tells the error listener, if there is one and the last attempt did not
+     * fail too (the held lock must be held).
+     * @param message The error message.
+     */
+    private void reportError(String message) {
+        lastError = message;
+        ErrorListener listener = errorListener;
+        if (!failing && listener != null) {
+            listener.failed(message);
+        }
+        failing = true;
+    }
+    
+    /**
+     * A buffer of submitted votes and the bitset used to validate them, guarded by its own lock.
+     */
+    private static class Stripe {
+        private final long[] selected;
+        private BallotStore buffer = new BallotStore();
+        
+        private Stripe(int candidateCount) {
+            selected = new long[(candidateCount + 63) / 64];
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package alternatevote;
+
+import java.util.ArrayList;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A table model that reads votes straight from a snapshot of the model's ballot store, so that the table can be
+ * rendered while the model changes in the background. Cells are only rendered when the table asks for them (which
+ * is only for the visible rows) and the styled text for each candidate is cached.
+ * @author ryansmith
+ */
+@SuppressWarnings("serial")
+public class VotesTableModel extends AbstractTableModel {
+    private final AVModel model;
+    private BallotSnapshot snapshot;
+    private String[] plainCells = new String[0];
+    private String[] choiceCells = new String[0];
+    private int columnCount = 0;
+    private int rowCount = 0;
+    private int choiceRow = -1;
+    private int choice = -1;
+    
+    /**
+     * Creates a table model showing the votes in a model.
+     * @param model The model, which must not be changing while the table model is created.
+     */
+    public VotesTableModel(AVModel model) {
+        this.model = model;
+        refresh(model.snapshotBallots());
+    }
+    
+    /**
+     * Refreshes the table after the model has changed.
+     * @param snapshot The snapshot of the ballots to show.
+     * @post The table shows the snapshot's votes and choices.
+     */
+    public final void refresh(BallotSnapshot snapshot) {
+        this.snapshot = snapshot;
+        ArrayList<Candidate> candidates = model.getCandidates();
+        int newColumnCount = candidates.size() + (snapshot.getBallots().isCollapsing() ? 1 : 0);
+        
+        // Caches the styled text of each candidate when the candidates change.
+        if (plainCells.length != candidates.size()) {
+            plainCells = new String[candidates.size()];
+            choiceCells = new String[candidates.size()];
+            for (int id = 0; id < candidates.size(); id++) {
+                String name = candidates.get(id).getName();
+                plainCells[id] = "<html><span >" + name + "</span></html>";
+                choiceCells[id] = "<html><span style='color:red'>" + name + "</span></html>";
+            }
+        }
+        
+        rowCount = snapshot.getBallots().size();
+        choiceRow = -1;
+        if (newColumnCount != columnCount) {
+            columnCount = newColumnCount;
+            fireTableStructureChanged();
+        } else {
+            fireTableDataChanged();
+        }
+    }
+    
+    /**
+     * Adds the rows of appended ballots without refreshing the rows before them.
+     * @param snapshot The snapshot of the ballots after they were appended.
+     * @param from The index of the first new ballot.
+     * @param to The index after the last new ballot.
+     * @post The table shows the new rows, and the earlier weights if the ballots are collapsed.
+     */
+    public void ballotsAppended(BallotSnapshot snapshot, int from, int to) {
+        this.snapshot = snapshot;
+        int oldRowCount = rowCount;
+        if (to > rowCount) {
+            rowCount = to;
+            fireTableRowsInserted(oldRowCount, to - 1);
+        }
+        
+        // Repaints the earlier rows of a collapsing store because their weights may have grown.
+        if (columnCount > plainCells.length && from > 0) {
+            choiceRow = -1;
+            fireTableRowsUpdated(0, Math.min(from, rowCount) - 1);
+        }
+    }
+    
+    /**
+     * Repaints the rows after the choices of the ballots have changed, without reading the ballots again.
+     * @param snapshot The snapshot of the ballots with their new choices.
+     * @post The table shows the snapshot's choices.
+     */
+    public void choicesChanged(BallotSnapshot snapshot) {
+        this.snapshot = snapshot;
+        choiceRow = -1;
+        if (rowCount > 0) {
+            fireTableRowsUpdated(0, rowCount - 1);
+        }
+    }
+    
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+    
+    @Override
+    public int getColumnCount() {
+        return columnCount;
+    }
+    
+    @Override
+    public String getColumnName(int column) {
+        if (column == plainCells.length) {
+            return "Votes";
+        }
+        return "Preference " + (column + 1);
+    }
+    
+    @Override
+    public Object getValueAt(int row, int column) {
+        BallotStore ballots = snapshot.getBallots();
+        if (column == plainCells.length) {
+            return ballots.getWeight(row);
+        } else if (column >= ballots.getLength(row)) {
+            return null;
+        }
+        
+        // Remembers the choice of the last row because cells are rendered a row at a time.
+        if (row != choiceRow) {
+            choice = snapshot.getChoiceId(row);
+            choiceRow = row;
+        }
+        
+        // Displays the current preference/choice in a different colour.
+        int id = ballots.getPreference(row, column);
+        return id == choice ? choiceCells[id] : plainCells[id];
+    }
+    
+    @Override
+    public boolean isCellEditable(int rowIndex, int columnIndex) {
+        return false; // Stops cells being edited.
+    }
+}
@@ -1,6 +1,19 @@
 package alternatevote;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import javax.management.ObjectName;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -101,10 +114,570 @@ public class AVModelTest {
         assertFalse(instance.hasStarted());
     }
     
+    @Test
+    public void testRedistributeCollapsed() throws Exception {
+        instance.setCollapsing(true);
+        instance.loadVotes(USER_DIR+"/fixtures/test3.csv");
+        assertTrue(instance.getBallots().size() == 4);
+        assertTrue(instance.getBallots().getTotalWeight() == 10);
+        
+        // Completes round 1.
+        instance.startCounting();
+        assertCount(0, 4);
+        assertCount(1, 3);
+        assertCount(2, 2);
+        assertCount(3, 1);
+        assertTrue(instance.hasStarted());
+        
+        eliminateAdditionalCandidates();
+        
+        // Completes rounds 2 and 3.
+        instance.redistribute();
+        instance.redistribute();
+        assertCount(0, 4);
+        assertCount(1, 3);
+        assertEliminated(2);
+        assertEliminated(3);
+        assertEliminations(2);
+        assertFalse(instance.hasStarted());
+    }
+    
+    @Test
+    public void testRedistributeParallel() throws Exception {
+        instance.setParallelism(3);
+        instance.loadVotes(USER_DIR+"/fixtures/test3.csv");
+        
+        // Completes round 1.
+        instance.startCounting();
+        assertCount(0, 4);
+        assertCount(1, 3);
+        assertCount(2, 2);
+        assertCount(3, 1);
+        assertTrue(instance.hasStarted());
+        
+        eliminateAdditionalCandidates();
+        
+        // Completes round 2.
+        instance.redistribute();
+        assertCount(0, 4);
+        assertCount(1, 3);
+        assertCount(2, 2);
+        assertEliminated(3);
+        assertTrue(instance.hasStarted());
+        
+        // Completes round 3.
+        instance.redistribute();
+        assertCount(0, 4);
+        assertCount(1, 3);
+        assertEliminated(2);
+        assertEliminations(2);
+        assertFalse(instance.hasStarted());
+    }
+    
+    @Test
+    public void testRunToCompletion() throws Exception {
+        instance.loadVotes(USER_DIR+"/fixtures/test3.csv");
+        RoundHistory history = instance.runToCompletion();
+        assertFalse(instance.hasStarted());
+        assertEquals(3, history.getRoundCount());
+        assertEquals(0, history.getLeaderId());
+        
+        // Checks the counts and transfers of each round.
+        assertEquals(-1, history.getEliminatedId(1));
+        assertEquals(1, history.getCount(1, 3));
+        assertEquals(3, history.getEliminatedId(2));
+        assertEquals(0, history.getTransfer(2, 2));
+        assertEquals(1, history.getExhausted(2));
+        assertEquals(2, history.getEliminatedId(3));
+        assertEquals(2, history.getExhausted(3));
+        assertEquals(4, history.getCount(3, 0));
+        assertEquals(3, history.getCount(3, 1));
+    }
+    
+    @Test
+    public void testRecountHasNoTransfers() throws Exception {
+        CandidateRegistry registry = new CandidateRegistry(new ArrayList<>(Arrays.asList("A", "B", "C")));
+        RoundHistory history = new RoundHistory(registry.size());
+        registry.setCounts(new int[] {4, 3, 1});
+        history.addRound(new int[0], 0, registry, false);
+        
+        // Records a round that recounted two new votes for B after C was eliminated.
+        registry.eliminate(2);
+        registry.setCounts(new int[] {4, 5, 0});
+        history.addRound(new int[] {2}, 1, registry, true);
+        assertTrue(history.isRecount(2));
+        assertEquals(5, history.getCount(2, 1));
+        assertEquals(0, history.getTransfer(2, 1));
+        assertEquals(0, history.getExhausted(2));
+        
+        // Works out the transfers of a round that only moved the eliminated candidate's votes.
+        registry.eliminate(0);
+        registry.setCounts(new int[] {0, 7, 0});
+        history.addRound(new int[] {0}, 1, registry, false);
+        assertFalse(history.isRecount(3));
+        assertEquals(2, history.getTransfer(3, 1));
+        assertEquals(2, history.getExhausted(3));
+    }
+    
+    @Test
+    public void testChoiceFollowsEliminations() throws Exception {
+        instance.loadVotes(USER_DIR+"/fixtures/test3.csv");
+        instance.startCounting();
+        assertEquals(2, instance.getChoiceId(7));
+        assertEquals(3, instance.getChoiceId(9));
+        BallotSnapshot snapshot = instance.snapshotBallots();
+        int size = snapshot.getBallots().size();
+        
+        // Checks the choices after Sturgeon and Farron are eliminated.
+        instance.redistribute();
+        instance.redistribute();
+        assertEquals(2, snapshot.getChoiceId(7));
+        assertEquals(size, snapshot.getBallots().size());
+        assertEquals(-1, instance.snapshotBallots().getChoiceId(7));
+        assertEquals(-1, instance.getChoiceId(7));
+        assertEquals(-1, instance.getChoiceId(9));
+        assertEquals(1, instance.getChoiceId(4));
+        assertNull(instance.getVote(8).getChoice());
+        assertSame(candidates.get(0), instance.getVote(0).getChoice());
+    }
+    
+    @Test
+    public void testAnalyseTies() throws Exception {
+        instance.loadVotes(USER_DIR+"/fixtures/test2.csv");
+        TieAnalysis analysis = instance.analyseTies(200, 7);
+        assertEquals(1, analysis.getFirstTieRound());
+        
+        // Checks that every run has a winner and that the runs do not depend on the number of threads.
+        instance.setParallelism(3);
+        TieAnalysis parallelAnalysis = instance.analyseTies(200, 7);
+        int totalWins = 0;
+        for (int id = 0; id < candidates.size(); id++) {
+            assertEquals(analysis.getWins(id), parallelAnalysis.getWins(id));
+            totalWins += analysis.getWins(id);
+        }
+        assertEquals(200, totalWins);
+    }
+    
+    @Test
+    public void testAnalyseTiesUniform() throws Exception {
+        // Every candidate is symmetric in test2.csv, so each should win about a quarter of the runs.
+        instance.loadVotes(USER_DIR+"/fixtures/test2.csv");
+        TieAnalysis analysis = instance.analyseTies(4000, 12345);
+        for (int id = 0; id < candidates.size(); id++) {
+            int wins = analysis.getWins(id);
+            assertTrue("Candidate " + id + " won " + wins + " runs", wins > 850 && wins < 1150);
+        }
+    }
+    
+    @Test
+    public void testLoadCandidates() throws Exception {
+        CandidateRegistry registry = CandidateRegistry.load(USER_DIR+"/fixtures/candidates1.txt");
+        assertEquals(5, registry.size());
+        instance = new AVModel(registry);
+        candidates = instance.getCandidates();
+        assertEquals("Eve", candidates.get(4).getName());
+        
+        instance.loadVotes(USER_DIR+"/fixtures/test3.csv");
+        instance.startCounting();
+        assertCount(0, 4);
+        assertCount(3, 1);
+        assertEquals(4, registry.getCount(0));
+        
+        // Rejects more candidates than 16-bit indexes can hold.
+        ArrayList<String> names = new ArrayList<>();
+        for (int id = 0; id <= CandidateRegistry.MAX_CANDIDATES; id++) {
+            names.add("Candidate " + id);
+        }
+        try {
+            new CandidateRegistry(names);
+            fail("Expected too many candidates to be rejected.");
+        } catch (IllegalArgumentException ex) {
+            assertEquals("There cannot be more than 65535 candidates.", ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void testValidateVoteReusesBitset() throws Exception {
+        long[] selected = new long[2];
+        try {
+            AVModel.validateVote(new int[] {0, 65, 2, 3, 4, 65}, 6, 70, selected);
+            fail("Expected the duplicate preference to be rejected.");
+        } catch (Exception ex) {
+            assertEquals("Candidate cannot be selected twice.", ex.getMessage());
+        }
+        
+        // Checks that the rejected vote left the bitset clear.
+        AVModel.validateVote(new int[] {65, 0}, 2, 70, selected);
+        assertArrayEquals(new long[2], selected);
+    }
+    
+    @Test
+    public void testSaveAndLoadBinaryVotes() throws Exception {
+        File file = File.createTempFile("votes", ".avb");
+        file.deleteOnExit();
+        instance.loadVotes(USER_DIR+"/fixtures/test3.csv");
+        instance.saveVotes(file.getAbsolutePath());
+        
+        // Loads the saved votes into a new model.
+        instance = new AVModel();
+        candidates = instance.getCandidates();
+        instance.loadBinaryVotes(file.getAbsolutePath());
+        assertTrue(instance.getBallots().size() == 10);
+        
+        instance.startCounting();
+        assertCount(0, 4);
+        assertCount(1, 3);
+        assertCount(2, 2);
+        assertCount(3, 1);
+        
+        // Rejects a file with a ballot that selects a candidate twice.
+        BallotStore invalid = new BallotStore();
+        invalid.add(new int[] {0, 1}, 2);
+        invalid.add(new int[] {2, 2}, 2);
+        BinaryBallotFile.save(invalid, 4, file.getAbsolutePath());
+        try {
+            BinaryBallotFile.load(file.getAbsolutePath(), 4);
+            fail("The duplicate preference should be rejected.");
+        } catch (Exception ex) {
+            assertEquals("Ballot 2: Candidate cannot be selected twice.", ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void testLoadVotesNotifiesOnce() throws Exception {
+        ArrayList<String> events = new ArrayList<>();
+        instance.addListener(new ModelListener() {
+            @Override
+            public void ballotsAppended(int from, int to) {
+                events.add("appended " + from + "-" + to);
+            }
+            
+            @Override
+            public void countReset() {
+                events.add("reset");
+            }
+            
+            @Override
+            public void candidateEliminated(int id, int round) {
+                events.add("eliminated " + id + " in " + round);
+            }
+            
+            @Override
+            public void roundCounted(RoundHistory history, int round) {
+                events.add("round " + round);
+            }
+        });
+        instance.loadVotes(USER_DIR+"/fixtures/test3.csv");
+        assertEquals(Arrays.asList("appended 0-10"), events);
+        
+        // Adds two votes in a batch.
+        ArrayList<ArrayList<Integer>> votes = new ArrayList<>();
+        votes.add(new ArrayList<>(Arrays.asList(0, 1)));
+        votes.add(new ArrayList<>(Arrays.asList(2)));
+        instance.addVotes(votes);
+        assertEquals("appended 10-12", events.get(1));
+        assertTrue(instance.getBallots().size() == 12);
+        
+        // Counts every round with only the eliminations and the last round delivered at the end.
+        events.clear();
+        RoundHistory history = instance.runToCompletion();
+        assertEquals("reset", events.get(0));
+        assertEquals("round " + history.getRoundCount(), events.get(events.size() - 1));
+        assertEquals(history.getRoundCount() - 1, events.size() - 2);
+    }
+    
+    @Test
+    public void testLoadVotesWindowsLineEndings() throws Exception {
+        instance.loadVotes(USER_DIR+"/fixtures/test4.csv");
+        assertTrue(instance.getBallots().size() == 10);
+        
+        instance.startCounting();
+        assertCount(0, 4);
+        assertCount(1, 3);
+        assertCount(2, 2);
+        assertCount(3, 1);
+    }
+    
+    @Test
+    public void testLoadVotesInvalidLine() throws Exception {
+        try {
+            instance.loadVotes(USER_DIR+"/fixtures/invalid1.csv");
+            fail("Expected the duplicate preference to be rejected.");
+        } catch (Exception ex) {
+            assertEquals("Line 3: Candidate cannot be selected twice.", ex.getMessage());
+        }
+        assertTrue(instance.getBallots().size() == 2);
+    }
+    
+    @Test
+    public void testStreamBallots() throws Exception {
+        File folder = Files.createTempDirectory("stream").toFile();
+        File incoming = File.createTempFile("stream", ".tmp");
+        try (BallotStream stream = new BallotStream(instance)) {
+            // Sends ballots over a socket, including an invalid one.
+            int port = stream.listen(0);
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                 Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII)) {
+                writer.write("0,1\n1\n\n2,3,0\n0,0\n");
+            }
+            
+            // Moves a finished file into the watched folder.
+            stream.watch(folder.getAbsolutePath());
+            Files.write(incoming.toPath(), "3\r\n0,2\r\n".getBytes(StandardCharsets.US_ASCII));
+            Files.move(incoming.toPath(), new File(folder, "box1.csv").toPath());
+            
+            long deadline = System.currentTimeMillis() + 10000;
+            while (stream.getAcceptedCount() + stream.getRejectedCount() < 6 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(5, stream.getAcceptedCount());
+            assertEquals(1, stream.getRejectedCount());
+            assertTrue(stream.getLastError().endsWith("Line 5: Candidate cannot be selected twice."));
+        }
+        
+        // Checks the running first-preference totals against a full count.
+        assertEquals(5, instance.getBallots().size());
+        assertArrayEquals(new int[] {2, 1, 1, 1}, new int[] {instance.getFirstPreferenceCount(0), instance.getFirstPreferenceCount(1), instance.getFirstPreferenceCount(2), instance.getFirstPreferenceCount(3)});
+        instance.startCounting();
+        for (int id = 0; id < 4; id++) {
+            assertCount(id, instance.getFirstPreferenceCount(id));
+        }
+        assertTrue(new File(folder, "box1.csv.done").delete());
+        assertTrue(folder.delete());
+    }
+    
+    @Test
+    public void testCancelLoad() throws Exception {
+        File file = File.createTempFile("cancel", ".csv");
+        try {
+            StringBuilder lines = new StringBuilder();
+            for (int line = 0; line < 20000; line++) {
+                lines.append("1,0\n");
+            }
+            Files.write(file.toPath(), lines.toString().getBytes(StandardCharsets.US_ASCII));
+            for (boolean collapsing : new boolean[] {false, true}) {
+                instance = new AVModel();
+                instance.setCollapsing(collapsing);
+                instance.loadVotes(USER_DIR+"/fixtures/test3.csv");
+                int sizeBefore = instance.getBallots().size();
+                int firstBefore = instance.getFirstPreferenceCount(1);
+                
+                // Cancels the load as soon as it starts, which leaves none of the file's votes.
+                instance.getProgress().setListener((round, processed, total) -> instance.cancel());
+                try {
+                    instance.loadVotes(file.getAbsolutePath());
+                    fail("The load should be cancelled.");
+                } catch (CancellationException ex) {
+                    // Expected.
+                }
+                assertEquals(sizeBefore, instance.getBallots().size());
+                assertEquals(10, instance.getBallots().getTotalWeight());
+                assertEquals(firstBefore, instance.getFirstPreferenceCount(1));
+                
+                // Stops the next load when cancelled between loads, and loads the whole file once it is not cancelled.
+                instance.getProgress().setListener(null);
+                instance.cancel();
+                try {
+                    instance.loadVotes(file.getAbsolutePath());
+                    fail("The load should be cancelled.");
+                } catch (CancellationException ex) {
+                    // Expected.
+                }
+                instance.loadVotes(file.getAbsolutePath());
+                assertEquals(20010, instance.getBallots().getTotalWeight());
+                assertEquals(firstBefore + 20000, instance.getFirstPreferenceCount(1));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testLoadSignsAndTrailingCommas() throws Exception {
+        File file = File.createTempFile("signs", ".csv");
+        try {
+            Files.write(file.toPath(), "0,1,\n+2,,\n3,,1\n".getBytes(StandardCharsets.US_ASCII));
+            try {
+                instance.loadVotes(file.getAbsolutePath());
+                fail("The empty field between preferences should be rejected.");
+            } catch (Exception ex) {
+                assertEquals("Line 3: Invalid candidate ID.", ex.getMessage());
+            }
+            assertEquals(2, instance.getBallots().size());
+            assertEquals(2, instance.getBallots().getLength(0));
+            assertEquals(1, instance.getBallots().getPreference(0, 1));
+            assertEquals(1, instance.getBallots().getLength(1));
+            assertEquals(2, instance.getBallots().getPreference(1, 0));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testLoadLeadingZeros() throws Exception {
+        File file = File.createTempFile("zeros", ".csv");
+        try {
+            Files.write(file.toPath(), "0000000000003,00\n-0000000001\n".getBytes(StandardCharsets.US_ASCII));
+            try {
+                instance.loadVotes(file.getAbsolutePath());
+                fail("The negative ID should be rejected.");
+            } catch (Exception ex) {
+                assertTrue(ex.getMessage().startsWith("Line 2"));
+            }
+            assertEquals(1, instance.getBallots().size());
+            assertEquals(3, instance.getBallots().getPreference(0, 0));
+            assertEquals(0, instance.getBallots().getPreference(0, 1));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testJournalReplayOrder() throws Exception {
+        // Recovers from the segments alone, and from a snapshot saved after every vote.
+        for (int snapshotInterval : new int[] {1000, 1}) {
+            File folder = Files.createTempDirectory("journal").toFile();
+            try {
+                AVModel model = new AVModel();
+                BallotJournal journal = new BallotJournal(folder.getAbsolutePath(), snapshotInterval);
+                model.recover(journal);
+                model.loadVotes(USER_DIR+"/fixtures/test1.csv");
+                model.runToCompletion();
+                for (int vote = 0; vote < 5; vote++) {
+                    model.addVote(new ArrayList<>(Arrays.asList(1, 0)));
+                }
+                journal.close();
+                
+                // Keeps the finished count of the first votes rather than counting the later votes in it.
+                AVModel recovered = new AVModel();
+                journal = new BallotJournal(folder.getAbsolutePath(), snapshotInterval);
+                recovered.recover(journal);
+                journal.close();
+                assertEquals(12, recovered.getBallots().size());
+                assertEquals(1, recovered.getHistory().getRoundCount());
+                assertEquals(4, recovered.getHistory().getCount(1, 0));
+                assertEquals(1, recovered.getHistory().getCount(1, 1));
+                assertFalse(recovered.hasStarted() || recovered.isCountCurrent());
+                assertEquals(6, recovered.getFirstPreferenceCount(1));
+            } finally {
+                for (File journalFile : folder.listFiles()) {
+                    journalFile.delete();
+                }
+                folder.delete();
+            }
+        }
+    }
+    
+    @Test
+    public void testJournalRejectsCorruptRounds() throws Exception {
+        // Journals a round with a candidate that does not exist, and a round outside a count.
+        int[][] rounds = {{9}, {1}};
+        String[] errors = {"The journal has an invalid round: Candidate could not be found.", "The journal is corrupt: it has a round record out of order."};
+        for (int index = 0; index < rounds.length; index++) {
+            File folder = Files.createTempDirectory("journal").toFile();
+            try {
+                BallotJournal journal = new BallotJournal(folder.getAbsolutePath(), 1000);
+                journal.recover(4);
+                journal.appendRound(rounds[index], 1);
+                journal.close();
+                try {
+                    new AVModel().recover(new BallotJournal(folder.getAbsolutePath(), 1000));
+                    fail("The journal should be rejected.");
+                } catch (Exception ex) {
+                    assertEquals(errors[index], ex.getMessage());
+                }
+            } finally {
+                for (File journalFile : folder.listFiles()) {
+                    journalFile.delete();
+                }
+                folder.delete();
+            }
+        }
+    }
+    
+    @Test
+    public void testMetrics() throws Exception {
+        CountMetrics metrics = new CountMetrics();
+        instance.setMetrics(metrics);
+        instance.loadVotes(USER_DIR+"/fixtures/test3.csv");
+        instance.addVote(new ArrayList<>(Arrays.asList(2, 0)));
+        assertEquals(11, metrics.getIngestedBallots());
+        assertTrue(metrics.getIngestRate() > 0 && metrics.getBytesPerBallot() > 0);
+        
+        // Records the first round, which counts every ballot, and then the rest of the rounds.
+        instance.startCounting();
+        assertEquals(1, metrics.getRoundCount());
+        assertEquals(11, metrics.getLastTransferredBallots());
+        RoundHistory history = instance.runToCompletion();
+        assertEquals(history.getRoundCount(), metrics.getRoundCount());
+        assertTrue(metrics.getTransferredBallots() > 11);
+        assertTrue(metrics.getNotificationCount() > 0);
+        
+        // Reads the metrics through JMX.
+        ObjectName name = metrics.register("test");
+        try {
+            assertEquals(11L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "IngestedBallots"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+    
+    @Test
+    public void testConcurrentSubmission() throws Exception {
+        int[][] expected = new int[8][4];
+        try (VoteSubmitter submitter = new VoteSubmitter(instance, Runnable::run, 4, 256)) {
+            // Submits votes from several operators at once, with an invalid vote every 100 votes.
+            ArrayList<Thread> operators = new ArrayList<>();
+            for (int operator = 0; operator < expected.length; operator++) {
+                int[] firstPreferences = expected[operator];
+                Random random = new Random(operator);
+                operators.add(new Thread(() -> {
+                    for (int vote = 0; vote < 5000; vote++) {
+                        int first = random.nextInt(4);
+                        int[] preferences = vote % 100 == 99 ? new int[] {first, first} : new int[] {first, (first + 1) % 4};
+                        try {
+                            submitter.submit(preferences, preferences.length);
+                            firstPreferences[first] += 1;
+                        } catch (Exception ex) {
+                            // Counts only the valid votes.
+                        }
+                    }
+                }));
+            }
+            for (Thread operator : operators) {
+                operator.start();
+            }
+            for (Thread operator : operators) {
+                operator.join();
+            }
+            assertTrue(submitter.flush());
+            assertEquals(8 * 4950, submitter.getPublishedCount());
+            assertEquals(8 * 50, submitter.getRejectedCount());
+            
+            // Holds votes submitted while counting until counting has finished.
+            instance.startCounting();
+            submitter.submit(new int[] {3}, 1);
+            assertFalse(submitter.flush());
+            assertEquals(8 * 4950, instance.getBallots().size());
+            instance.runToCompletion();
+            assertTrue(submitter.flush());
+            assertEquals(8 * 4950 + 1, instance.getBallots().size());
+        }
+        
+        // Checks the first preferences of the published votes.
+        for (int id = 0; id < 4; id++) {
+            int total = id == 3 ? 1 : 0;
+            for (int[] firstPreferences : expected) {
+                total += firstPreferences[id];
+            }
+            assertEquals(total, instance.getFirstPreferenceCount(id));
+        }
+    }
+    
     /**
      * Eliminates additional candidates. The tests were only designed for 4 candidates.
      */
-    private void eliminateAdditionalCandidates() {
+    private void eliminateAdditionalCandidates() throws IOException {
         int additionalCandidates = candidates.size() - 4;
         
         for (int index = 0; index < additionalCandidates; index++) {
@@ -0,0 +1,431 @@
+package alternatevote;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that large generated elections are counted the same as a simple reference counter, logging the load time,
+ * round time and peak heap. The number of ballots is set by the scale.ballots system property, which can be passed
+ * to the tests with ant test -Dtest-sys-prop.scale.ballots=5000000.
+ * @author ryansmith
+ */
+public class ScaleTest {
+    private static final int BALLOTS = Integer.getInteger("scale.ballots", 200000);
+    private static final int CANDIDATES = 8;
+    private static final int MANY_CANDIDATES = 1000;
+    private static File file;
+    private static File nearTieFile;
+    private static File longBallotFile;
+    
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        file = File.createTempFile("scale", ".csv");
+        BallotGenerator generator = new BallotGenerator(CANDIDATES, 1);
+        generator.setCorrelation(0.7);
+        generator.setDuplicateRatio(0.2);
+        generator.write(file.getAbsolutePath(), BALLOTS);
+        
+        // Generates an election with close counts in every round.
+        nearTieFile = File.createTempFile("scale", ".csv");
+        generator = new BallotGenerator(CANDIDATES, 2);
+        generator.setNearTie(true);
+        generator.setLengthDistribution(BallotGenerator.LengthDistribution.SHORT);
+        generator.write(nearTieFile.getAbsolutePath(), BALLOTS);
+        
+        // Generates a long ballot election with many candidates and fewer ballots.
+        longBallotFile = File.createTempFile("scale", ".csv");
+        generator = new BallotGenerator(MANY_CANDIDATES, 3);
+        generator.setCorrelation(0.5);
+        generator.write(longBallotFile.getAbsolutePath(), BALLOTS / 20);
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+        file.delete();
+        nearTieFile.delete();
+        longBallotFile.delete();
+    }
+    
+    @Test
+    public void testCorrelatedElection() throws Exception {
+        assertMatchesReference(file, CANDIDATES, false);
+    }
+    
+    @Test
+    public void testNearTieElection() throws Exception {
+        assertMatchesReference(nearTieFile, CANDIDATES, false);
+    }
+    
+    @Test
+    public void testCollapsedElection() throws Exception {
+        assertMatchesReference(file, CANDIDATES, true);
+    }
+    
+    @Test
+    public void testManyCandidatesElection() throws Exception {
+        assertMatchesReference(longBallotFile, MANY_CANDIDATES, false);
+    }
+    
+    @Test
+    public void testBulkExclusion() throws Exception {
+        AVModel model = createModel(MANY_CANDIDATES);
+        model.setBulkExclusion(true);
+        model.loadVotes(longBallotFile.getAbsolutePath());
+        long start = System.nanoTime();
+        RoundHistory history = model.runToCompletion();
+        System.out.printf("%s bulk exclusion: %d rounds %.1f ms%n", longBallotFile.getName(), history.getRoundCount(), (System.nanoTime() - start) / 1e6);
+        
+        // Compares the winner with the last round of the reference counter.
+        int[][] reference = countReference(longBallotFile, MANY_CANDIDATES);
+        int[] lastRound = reference[reference.length - 1];
+        int winner = 0;
+        for (int id = 1; id < MANY_CANDIDATES; id++) {
+            if (lastRound[id] > lastRound[winner]) {
+                winner = id;
+            }
+        }
+        assertEquals(winner, history.getLeaderId());
+        assertEquals(lastRound[winner], history.getCount(history.getRoundCount(), winner));
+        assertTrue(history.getRoundCount() < reference.length);
+    }
+    
+    @Test
+    public void testScheduledElections() throws Exception {
+        File[] files = {file, nearTieFile, longBallotFile};
+        int[] candidateCounts = {CANDIDATES, CANDIDATES, MANY_CANDIDATES};
+        ElectionScheduler scheduler = new ElectionScheduler(2, Long.MAX_VALUE);
+        for (int index = 0; index < files.length; index++) {
+            String path = files[index].getAbsolutePath();
+            scheduler.addElection(files[index].getName(), createModel(candidateCounts[index]), (model) -> model.loadVotes(path));
+        }
+        
+        // Adds an election that is too big for its memory limit to a scheduler of its own, so loading it fails, and one
+        // whose loader runs out of memory.
+        ElectionScheduler limited = new ElectionScheduler(1, 1024);
+        ElectionScheduler.Election failed = limited.addElection("big", createModel(CANDIDATES), (model) -> model.loadVotes(file.getAbsolutePath()));
+        ElectionScheduler.Election crashed = limited.addElection("crashed", createModel(CANDIDATES), (model) -> {
+            throw new OutOfMemoryError("Java heap space");
+        });
+        limited.start();
+        scheduler.start();
+        scheduler.awaitCompletion();
+        limited.awaitCompletion();
+        assertEquals(ElectionScheduler.State.FAILED, failed.getState());
+        assertTrue(failed.getError().contains("memory limit"));
+        assertEquals(ElectionScheduler.State.FAILED, crashed.getState());
+        assertTrue(crashed.getError().contains("OutOfMemoryError"));
+        
+        // Compares each scheduled election with counting it on its own.
+        ArrayList<ElectionScheduler.Election> elections = scheduler.getElections();
+        for (int index = 0; index < files.length; index++) {
+            AVModel model = createModel(candidateCounts[index]);
+            model.loadVotes(files[index].getAbsolutePath());
+            RoundHistory expected = model.runToCompletion();
+            ElectionScheduler.Election election = elections.get(index);
+            assertEquals(ElectionScheduler.State.FINISHED, election.getState());
+            assertEquals(expected.getRoundCount(), election.getRoundCount());
+            assertEquals(model.getCandidates().get(expected.getLeaderId()).getName(), election.getWinnerName());
+        }
+        assertEquals(0, scheduler.getRemainingCount());
+    }
+    
+    @Test
+    public void testShardedCount() throws Exception {
+        ArrayList<File> tempFiles = new ArrayList<>();
+        try {
+            File candidatesFile = createTempFile(tempFiles, ".txt");
+            try (PrintWriter writer = new PrintWriter(candidatesFile)) {
+                for (int id = 0; id < CANDIDATES; id++) {
+                    writer.println("Candidate " + id);
+                }
+            }
+            
+            // Saves a partial tally of each site's ballots in a process of its own.
+            ArrayList<String> ballotPaths = new ArrayList<>();
+            ArrayList<String> tallyPaths = new ArrayList<>();
+            ArrayList<Process> sites = new ArrayList<>();
+            for (int site = 0; site < 3; site++) {
+                File ballotFile = createTempFile(tempFiles, ".csv");
+                BallotGenerator generator = new BallotGenerator(CANDIDATES, 10 + site);
+                generator.setNearTie(true);
+                generator.setDuplicateRatio(0.5);
+                generator.write(ballotFile.getAbsolutePath(), BALLOTS / 4);
+                File tallyFile = createTempFile(tempFiles, ".avb");
+                ballotPaths.add(ballotFile.getAbsolutePath());
+                tallyPaths.add(tallyFile.getAbsolutePath());
+                sites.add(startCounter("--candidates", candidatesFile.getAbsolutePath(), "--shard", tallyFile.getAbsolutePath(), ballotFile.getAbsolutePath()));
+            }
+            for (Process site : sites) {
+                assertEquals(0, site.waitFor());
+            }
+            
+            // Counts the partial tallies in a coordinator process and the raw ballots in this one.
+            File coordinatorReport = createTempFile(tempFiles, ".txt");
+            ArrayList<String> arguments = new ArrayList<>(Arrays.asList("--candidates", candidatesFile.getAbsolutePath(), "--merge", "--lowest-id", "--output", coordinatorReport.getAbsolutePath()));
+            arguments.addAll(tallyPaths);
+            assertEquals(0, startCounter(arguments.toArray(new String[arguments.size()])).waitFor());
+            File singleReport = createTempFile(tempFiles, ".txt");
+            arguments = new ArrayList<>(Arrays.asList("--candidates", candidatesFile.getAbsolutePath(), "--merge", "--lowest-id", "--output", singleReport.getAbsolutePath()));
+            arguments.addAll(ballotPaths);
+            assertEquals(0, HeadlessCounter.run(arguments.toArray(new String[arguments.size()])));
+            
+            ArrayList<String> expected = readResults(singleReport);
+            assertTrue(expected.size() > 2);
+            assertEquals(expected, readResults(coordinatorReport));
+        } finally {
+            for (File tempFile : tempFiles) {
+                tempFile.delete();
+            }
+        }
+    }
+    
+    @Test
+    public void testJournalRecovery() throws Exception {
+        File folder = Files.createTempDirectory("journal").toFile();
+        try {
+            ArrayList<ArrayList<Integer>> votes = new ArrayList<>();
+            for (String line : Files.readAllLines(nearTieFile.toPath())) {
+                ArrayList<Integer> vote = new ArrayList<>();
+                for (String field : line.split(",")) {
+                    vote.add(Integer.parseInt(field));
+                }
+                votes.add(vote);
+            }
+            
+            // Journals the votes in batches as a submitter would, so that each batch waits for one force, with
+            // snapshots along the way, and counts the first rounds.
+            AVModel model = createModel(CANDIDATES);
+            BallotJournal journal = new BallotJournal(folder.getAbsolutePath(), BALLOTS / 8);
+            model.recover(journal);
+            long start = System.nanoTime();
+            for (int from = 0; from < votes.size(); from += 1000) {
+                model.addVotes(new ArrayList<>(votes.subList(from, Math.min(from + 1000, votes.size()))));
+            }
+            journal.flush();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s journaled: %d ballots %.1f ms (%.0f ballots a second)%n", nearTieFile.getName(), votes.size(), seconds * 1000, votes.size() / seconds);
+            assertTrue(votes.size() / seconds > 10000);
+            model.startCounting();
+            model.redistribute();
+            model.redistribute();
+            journal.close();
+            
+            // Tears the last record of the newest segment as a crash part way through a write would.
+            File[] segments = folder.listFiles((dir, name) -> name.endsWith(".avj"));
+            Arrays.sort(segments);
+            try (FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true)) {
+                out.write(new byte[] {1, 0, 0, 0, 100, 7});
+            }
+            assertTrue(folder.listFiles((dir, name) -> name.endsWith(".avb")).length == 1);
+            
+            // Recovers into a new model and compares it with the model before the crash.
+            AVModel recovered = createModel(CANDIDATES);
+            journal = new BallotJournal(folder.getAbsolutePath(), BALLOTS / 8);
+            recovered.recover(journal);
+            assertEquals(model.getBallots().size(), recovered.getBallots().size());
+            assertEquals(model.getRound(), recovered.getRound());
+            assertEquals(model.hasStarted(), recovered.hasStarted());
+            for (int id = 0; id < CANDIDATES; id++) {
+                assertEquals(model.getFirstPreferenceCount(id), recovered.getFirstPreferenceCount(id));
+                for (int round = 1; round <= model.getRound(); round++) {
+                    assertEquals(model.getHistory().getCount(round, id), recovered.getHistory().getCount(round, id));
+                }
+            }
+            
+            // Finishes the recovered count and compares it with counting the file.
+            RoundHistory history = recovered.runToCompletion();
+            journal.close();
+            AVModel expected = createModel(CANDIDATES);
+            expected.loadVotes(nearTieFile.getAbsolutePath());
+            RoundHistory expectedHistory = expected.runToCompletion();
+            assertEquals(expectedHistory.getRoundCount(), history.getRoundCount());
+            assertEquals(expectedHistory.getLeaderId(), history.getLeaderId());
+        } finally {
+            for (File journalFile : folder.listFiles()) {
+                journalFile.delete();
+            }
+            folder.delete();
+        }
+    }
+    
+    /**
+     * Creates a temporary file that is deleted at the end of the test.
+     * @param tempFiles The files to delete at the end of the test.
+     * @param suffix The suffix of the file name.
+     * @return The file.
+     */
+    private static File createTempFile(ArrayList<File> tempFiles, String suffix) throws IOException {
+        File tempFile = File.createTempFile("scale", suffix);
+        tempFiles.add(tempFile);
+        return tempFile;
+    }
+    
+    /**
+     * Starts the headless counter in a new JVM with the test's class path.
+     * @param args The command line arguments.
+     * @return The process.
+     */
+    private static Process startCounter(String... args) throws IOException {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("alternatevote.AVCounter");
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+    
+    /**
+     * Reads the rounds and the winner from a counter report, leaving out the timings.
+     * @param report The report.
+     * @return The lines of the rounds and the winner.
+     */
+    private static ArrayList<String> readResults(File report) throws IOException {
+        ArrayList<String> results = new ArrayList<>();
+        for (String line : Files.readAllLines(report.toPath())) {
+            if (line.startsWith("Round ") || line.startsWith("Winner: ")) {
+                results.add(line);
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Counts a file with the model and the reference counter and asserts that every round matches.
+     * @param ballotFile The file of ballots.
+     * @param candidateCount The number of candidates.
+     * @param collapsing True to collapse identical rankings in the model.
+     */
+    private void assertMatchesReference(File ballotFile, int candidateCount, boolean collapsing) throws Exception {
+        AVModel model = createModel(candidateCount);
+        model.setCollapsing(collapsing);
+        resetPeakHeap();
+        
+        long start = System.nanoTime();
+        model.loadVotes(ballotFile.getAbsolutePath());
+        long loaded = System.nanoTime();
+        RoundHistory history = model.runToCompletion();
+        long counted = System.nanoTime();
+        System.out.printf("%s (%d candidates, %d ballots, collapsing %b): load %.1f ms, %d rounds %.1f ms (%.2f ms a round), peak heap %d MB%n",
+            ballotFile.getName(), candidateCount, model.getBallots().getTotalWeight(), collapsing, (loaded - start) / 1e6, history.getRoundCount(), (counted - loaded) / 1e6,
+            (counted - loaded) / 1e6 / history.getRoundCount(), getPeakHeap() / (1024 * 1024));
+        
+        // Compares every round with the reference counter.
+        int[][] reference = countReference(ballotFile, candidateCount);
+        assertEquals(reference.length, history.getRoundCount());
+        for (int round = 1; round <= reference.length; round++) {
+            for (int id = 0; id < candidateCount; id++) {
+                assertEquals("Round " + round + " candidate " + id, reference[round - 1][id], history.getCount(round, id));
+            }
+        }
+    }
+    
+    /**
+     * Creates a model with numbered candidates that breaks ties by eliminating the lowest ID.
+     * @param candidateCount The number of candidates.
+     * @return The model.
+     */
+    private static AVModel createModel(int candidateCount) {
+        ArrayList<String> names = new ArrayList<>();
+        for (int id = 0; id < candidateCount; id++) {
+            names.add("Candidate " + id);
+        }
+        AVModel model = new AVModel(names);
+        model.setTieBreaker(new LowestIdTieBreaker());
+        return model;
+    }
+    
+    /**
+     * Counts a file by recounting every ballot in every round, eliminating the lowest ID on a tie.
+     * @param ballotFile The file of ballots.
+     * @param candidateCount The number of candidates.
+     * @return The counts of each round.
+     */
+    private static int[][] countReference(File ballotFile, int candidateCount) throws Exception {
+        ArrayList<int[]> ballots = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(ballotFile))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split(",");
+                int[] ballot = new int[fields.length];
+                for (int rank = 0; rank < fields.length; rank++) {
+                    ballot[rank] = Integer.parseInt(fields[rank]);
+                }
+                ballots.add(ballot);
+            }
+        }
+        
+        ArrayList<int[]> rounds = new ArrayList<>();
+        boolean[] eliminated = new boolean[candidateCount];
+        while (true) {
+            int[] counts = new int[candidateCount];
+            for (int[] ballot : ballots) {
+                for (int id : ballot) {
+                    if (!eliminated[id]) {
+                        counts[id] += 1;
+                        break;
+                    }
+                }
+            }
+            rounds.add(counts);
+            
+            // Stops when a candidate has a majority, or otherwise eliminates the lowest.
+            int total = 0;
+            int highest = 0;
+            int lowest = -1;
+            for (int id = 0; id < candidateCount; id++) {
+                if (!eliminated[id]) {
+                    total += counts[id];
+                    highest = Math.max(highest, counts[id]);
+                    if (lowest == -1 || counts[id] < counts[lowest]) {
+                        lowest = id;
+                    }
+                }
+            }
+            if (total < 1 || highest * 2 > total) {
+                return rounds.toArray(new int[rounds.size()][]);
+            }
+            eliminated[lowest] = true;
+        }
+    }
+    
+    /**
+     * Resets the peak usage of the heap memory pools.
+     */
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+    
+    /**
+     * Gets the peak heap usage since it was last reset.
+     * @return The sum of the peak usage of the heap memory pools in bytes.
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}